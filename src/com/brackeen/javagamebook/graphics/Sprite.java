@@ -1,6 +1,7 @@
 package com.brackeen.javagamebook.graphics;
 
 import java.awt.Image;
+import java.nio.ByteBuffer;
 
 public class Sprite {
 
@@ -11,6 +12,17 @@ public class Sprite {
     // velocity (pixels per millisecond)
     private float dx;
     private float dy;
+    // state and type tag, used by subclasses
+    private int state;
+    private int type;
+    // the store holding the above while this sprite is in one
+    private SpriteStore store;
+    private int storeIndex;
+    // handle of this sprite in the list of its map, or -1
+    private int handle = -1;
+    // collision layer bits, and the layers it collides with
+    private int collisionLayer = 1;
+    private int collisionMask = ~0;
 
     /**
         Creates a new Sprite object with the specified Animation.
@@ -24,8 +36,23 @@ public class Sprite {
         on the velocity.
     */
     public void update(long elapsedTime) {
-        x += dx * elapsedTime;
-        y += dy * elapsedTime;
+        if (store != null) {
+            store.getX()[storeIndex] +=
+                store.getVelocityX()[storeIndex] * elapsedTime;
+            store.getY()[storeIndex] +=
+                store.getVelocityY()[storeIndex] * elapsedTime;
+        }
+        else {
+            x += dx * elapsedTime;
+            y += dy * elapsedTime;
+        }
+        anim.update(elapsedTime);
+    }
+
+    /**
+        Updates this Sprite's Animation without moving it.
+    */
+    public void updateAnimation(long elapsedTime) {
         anim.update(elapsedTime);
     }
 
@@ -33,28 +60,38 @@ public class Sprite {
         Gets this Sprite's current x position.
     */
     public float getX() {
-        return x;
+        return (store != null)?store.getX()[storeIndex]:x;
     }
 
     /**
         Gets this Sprite's current y position.
     */
     public float getY() {
-        return y;
+        return (store != null)?store.getY()[storeIndex]:y;
     }
 
     /**
         Sets this Sprite's current x position.
     */
     public void setX(float x) {
-        this.x = x;
+        if (store != null) {
+            store.getX()[storeIndex] = x;
+        }
+        else {
+            this.x = x;
+        }
     }
 
     /**
         Sets this Sprite's current y position.
     */
     public void setY(float y) {
-        this.y = y;
+        if (store != null) {
+            store.getY()[storeIndex] = y;
+        }
+        else {
+            this.y = y;
+        }
     }
 
     /**
@@ -78,7 +115,7 @@ public class Sprite {
         per millisecond.
     */
     public float getVelocityX() {
-        return dx;
+        return (store != null)?store.getVelocityX()[storeIndex]:dx;
     }
 
     /**
@@ -86,7 +123,7 @@ public class Sprite {
         per millisecond.
     */
     public float getVelocityY() {
-        return dy;
+        return (store != null)?store.getVelocityY()[storeIndex]:dy;
     }
 
     /**
@@ -94,7 +131,12 @@ public class Sprite {
         per millisecond.
     */
     public void setVelocityX(float dx) {
-        this.dx = dx;
+        if (store != null) {
+            store.getVelocityX()[storeIndex] = dx;
+        }
+        else {
+            this.dx = dx;
+        }
     }
 
     /**
@@ -102,7 +144,173 @@ public class Sprite {
         per millisecond.
     */
     public void setVelocityY(float dy) {
+        if (store != null) {
+            store.getVelocityY()[storeIndex] = dy;
+        }
+        else {
+            this.dy = dy;
+        }
+    }
+
+    /**
+        Gets this Sprite's type tag. Type tags let code that loops
+        over a SpriteStore tell kinds of Sprites apart without
+        looking at the Sprites themselves.
+    */
+    public int getType() {
+        return (store != null)?store.getType()[storeIndex]:type;
+    }
+
+    /**
+        Sets this Sprite's type tag.
+    */
+    public void setType(int type) {
+        if (store != null) {
+            store.getType()[storeIndex] = type;
+        }
+        else {
+            this.type = type;
+        }
+    }
+
+    /**
+        Gets the state value kept for subclasses.
+    */
+    protected int getStoredState() {
+        return (store != null)?store.getState()[storeIndex]:state;
+    }
+
+    /**
+        Sets the state value kept for subclasses.
+    */
+    protected void setStoredState(int state) {
+        if (store != null) {
+            store.getState()[storeIndex] = state;
+        }
+        else {
+            this.state = state;
+        }
+    }
+
+    /**
+        Gets the number of bytes writeState() writes for this
+        Sprite.
+    */
+    public int getStateSize() {
+        return 20;
+    }
+
+    /**
+        Writes the position, velocity and state of this Sprite
+        to a buffer, for a snapshot of the game. Subclasses with
+        more state write it after this.
+    */
+    public void writeState(ByteBuffer buffer) {
+        buffer.putFloat(getX());
+        buffer.putFloat(getY());
+        buffer.putFloat(getVelocityX());
+        buffer.putFloat(getVelocityY());
+        buffer.putInt(getStoredState());
+    }
+
+    /**
+        Reads back the state written by writeState().
+    */
+    public void readState(ByteBuffer buffer) {
+        setX(buffer.getFloat());
+        setY(buffer.getFloat());
+        setVelocityX(buffer.getFloat());
+        setVelocityY(buffer.getFloat());
+        setStoredState(buffer.getInt());
+    }
+
+    /**
+        Gets the SpriteStore this Sprite is in, or null if it
+        isn't in a store.
+    */
+    public SpriteStore getStore() {
+        return store;
+    }
+
+    /**
+        Gets the index of this Sprite in its SpriteStore.
+    */
+    public int getStoreIndex() {
+        return storeIndex;
+    }
+
+    /**
+        Gets the handle of this Sprite in the list that holds it,
+        or -1 if it isn't in a list.
+    */
+    public int getHandle() {
+        return handle;
+    }
+
+    /**
+        Sets the handle of this Sprite. Only the list that holds
+        the Sprite should call this.
+    */
+    public void setHandle(int handle) {
+        this.handle = handle;
+    }
+
+    /**
+        Makes this Sprite a view of an entry in a SpriteStore.
+    */
+    void attach(SpriteStore store, int storeIndex) {
+        this.store = store;
+        this.storeIndex = storeIndex;
+    }
+
+    /**
+        Takes this Sprite out of its SpriteStore, keeping the
+        values of its entry.
+    */
+    void detach(float x, float y, float dx, float dy, int state,
+        int type)
+    {
+        this.store = null;
+        this.x = x;
+        this.y = y;
+        this.dx = dx;
         this.dy = dy;
+        this.state = state;
+        this.type = type;
+    }
+
+    /**
+        Gets the collision layer bits of this Sprite.
+    */
+    public int getCollisionLayer() {
+        return collisionLayer;
+    }
+
+    /**
+        Gets the collision layers this Sprite collides with.
+    */
+    public int getCollisionMask() {
+        return collisionMask;
+    }
+
+    /**
+        Sets the collision layer bits of this Sprite and the
+        layers it collides with. By default, a Sprite is on
+        layer 1 and collides with every layer.
+    */
+    public void setCollisionFilter(int layer, int mask) {
+        this.collisionLayer = layer;
+        this.collisionMask = mask;
+    }
+
+    /**
+        Checks if this Sprite and the specified Sprite can collide
+        with one another, based on their collision layers. Both
+        Sprites' masks must accept the other's layer.
+    */
+    public boolean canCollide(Sprite other) {
+        return (collisionLayer & other.collisionMask) != 0 &&
+            (other.collisionLayer & collisionMask) != 0;
     }
 
     /**
@@ -112,11 +320,25 @@ public class Sprite {
         return anim.getImage();
     }
 
+    /**
+        Resets this Sprite so it can be used again, as if it was
+        just cloned: stops it and starts its Animation over.
+        Position is left as is.
+    */
+    public void reset() {
+        setVelocityX(0);
+        setVelocityY(0);
+        anim.start();
+    }
+
     /**
         Clones this Sprite. Does not clone position or velocity
         info.
     */
     public Object clone() {
-        return new Sprite(anim);
+        Sprite sprite = new Sprite(anim);
+        sprite.setType(getType());
+        sprite.setCollisionFilter(collisionLayer, collisionMask);
+        return sprite;
     }
 }
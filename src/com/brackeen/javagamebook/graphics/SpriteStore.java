@@ -0,0 +1,187 @@
+package com.brackeen.javagamebook.graphics;
+
+/**
+    The SpriteStore class keeps the position, velocity, state and
+    type of a group of Sprites in parallel arrays, one entry per
+    Sprite. A Sprite added to a SpriteStore becomes a view of its
+    entry: its getters and setters read and write the arrays, so
+    code that updates many Sprites can loop over the arrays
+    directly instead of calling each Sprite.
+
+    <p>Entries are packed: removing a Sprite moves the last entry
+    into its place, so the index of a Sprite can change when
+    another Sprite is removed.
+*/
+public class SpriteStore {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Sprite[] sprites;
+    private float[] x;
+    private float[] y;
+    private float[] dx;
+    private float[] dy;
+    private int[] state;
+    private int[] type;
+    private int size;
+
+    /**
+        Creates a new, empty SpriteStore.
+    */
+    public SpriteStore() {
+        sprites = new Sprite[INITIAL_CAPACITY];
+        x = new float[INITIAL_CAPACITY];
+        y = new float[INITIAL_CAPACITY];
+        dx = new float[INITIAL_CAPACITY];
+        dy = new float[INITIAL_CAPACITY];
+        state = new int[INITIAL_CAPACITY];
+        type = new int[INITIAL_CAPACITY];
+    }
+
+
+    /**
+        Gets the number of Sprites in this store.
+    */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+        Gets the Sprite at the specified index.
+    */
+    public Sprite getSprite(int index) {
+        return sprites[index];
+    }
+
+
+    /**
+        Adds a Sprite to this store, moving its position,
+        velocity, state and type into the store. If the Sprite is
+        in another store, it is removed from that store first.
+    */
+    public void add(Sprite sprite) {
+        if (sprite.getStore() != null) {
+            sprite.getStore().remove(sprite);
+        }
+        if (size == sprites.length) {
+            grow();
+        }
+        sprites[size] = sprite;
+        x[size] = sprite.getX();
+        y[size] = sprite.getY();
+        dx[size] = sprite.getVelocityX();
+        dy[size] = sprite.getVelocityY();
+        state[size] = sprite.getStoredState();
+        type[size] = sprite.getType();
+        sprite.attach(this, size);
+        size++;
+    }
+
+
+    /**
+        Removes a Sprite from this store. The Sprite keeps its
+        position, velocity, state and type. Returns false if the
+        Sprite isn't in this store.
+    */
+    public boolean remove(Sprite sprite) {
+        if (sprite.getStore() != this) {
+            return false;
+        }
+        int index = sprite.getStoreIndex();
+        sprite.detach(x[index], y[index], dx[index], dy[index],
+            state[index], type[index]);
+
+        // move the last entry into the empty slot
+        size--;
+        if (index != size) {
+            sprites[index] = sprites[size];
+            x[index] = x[size];
+            y[index] = y[size];
+            dx[index] = dx[size];
+            dy[index] = dy[size];
+            state[index] = state[size];
+            type[index] = type[size];
+            sprites[index].attach(this, index);
+        }
+        sprites[size] = null;
+        return true;
+    }
+
+
+    /**
+        Gets the x positions of the Sprites in this store.
+    */
+    public float[] getX() {
+        return x;
+    }
+
+
+    /**
+        Gets the y positions of the Sprites in this store.
+    */
+    public float[] getY() {
+        return y;
+    }
+
+
+    /**
+        Gets the horizontal velocities of the Sprites in this
+        store.
+    */
+    public float[] getVelocityX() {
+        return dx;
+    }
+
+
+    /**
+        Gets the vertical velocities of the Sprites in this store.
+    */
+    public float[] getVelocityY() {
+        return dy;
+    }
+
+
+    /**
+        Gets the states of the Sprites in this store.
+    */
+    public int[] getState() {
+        return state;
+    }
+
+
+    /**
+        Gets the type tags of the Sprites in this store.
+    */
+    public int[] getType() {
+        return type;
+    }
+
+
+    private void grow() {
+        int capacity = sprites.length * 2;
+        Sprite[] newSprites = new Sprite[capacity];
+        System.arraycopy(sprites, 0, newSprites, 0, size);
+        sprites = newSprites;
+        x = grow(x, capacity);
+        y = grow(y, capacity);
+        dx = grow(dx, capacity);
+        dy = grow(dy, capacity);
+        state = grow(state, capacity);
+        type = grow(type, capacity);
+    }
+
+
+    private float[] grow(float[] array, int capacity) {
+        float[] newArray = new float[capacity];
+        System.arraycopy(array, 0, newArray, 0, size);
+        return newArray;
+    }
+
+
+    private int[] grow(int[] array, int capacity) {
+        int[] newArray = new int[capacity];
+        System.arraycopy(array, 0, newArray, 0, size);
+        return newArray;
+    }
+}
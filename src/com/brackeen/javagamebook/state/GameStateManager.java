@@ -1,5 +1,6 @@
 package com.brackeen.javagamebook.state;
 
+import java.awt.Color;
 import java.awt.Image;
 import java.awt.Graphics2D;
 import java.util.*;
@@ -14,6 +15,8 @@ public class GameStateManager {
     private GameState currentState;
     private InputManager inputManager;
     private boolean done;
+    // the images being loaded, while resources are loaded
+    private volatile ImageLoader imageLoader;
 
     public GameStateManager(InputManager inputManager,
         Image defaultImage)
@@ -31,11 +34,26 @@ public class GameStateManager {
         return gameStates.values().iterator();
     }
 
+    /**
+        Loads the resources of every state. Images are decoded on
+        an ImageLoader, and the default image is drawn with the
+        progress of the loader meanwhile.
+    */
     public void loadAllResources(ResourceManager resourceManager) {
-        Iterator i = getStates();
-        while (i.hasNext()) {
-            GameState gameState = (GameState)i.next();
-            gameState.loadResources(resourceManager);
+        ImageLoader loader = new ImageLoader(resourceManager);
+        resourceManager.setImageLoader(loader);
+        imageLoader = loader;
+        try {
+            Iterator i = getStates();
+            while (i.hasNext()) {
+                GameState gameState = (GameState)i.next();
+                gameState.loadResources(resourceManager);
+            }
+        }
+        finally {
+            imageLoader = null;
+            resourceManager.setImageLoader(null);
+            loader.close();
         }
     }
 
@@ -102,6 +120,23 @@ public class GameStateManager {
         else {
             // if no state, draw the default image to the screen
             g.drawImage(defaultImage, 0, 0, null);
+            ImageLoader loader = imageLoader;
+            if (loader != null) {
+                drawProgress(g, loader.getProgress());
+            }
         }
     }
+
+
+    /**
+        Draws a progress bar near the bottom of the default image.
+    */
+    private void drawProgress(Graphics2D g, float progress) {
+        int width = defaultImage.getWidth(null) / 2;
+        int x = width / 2;
+        int y = defaultImage.getHeight(null) - 40;
+        g.setColor(Color.WHITE);
+        g.drawRect(x, y, width, 8);
+        g.fillRect(x, y, Math.round(width * progress), 8);
+    }
 }
\ No newline at end of file
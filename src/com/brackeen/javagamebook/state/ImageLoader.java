@@ -0,0 +1,223 @@
+package com.brackeen.javagamebook.state;
+
+import java.awt.Image;
+import java.util.ArrayList;
+import java.util.HashMap;
+import com.brackeen.javagamebook.util.ThreadPool;
+
+/**
+    The ImageLoader class decodes images from the images/
+    directory on a ThreadPool, so many images are decoded at once.
+    Each image is a task of its own, and is only decoded once no
+    matter how many times it is asked for.
+
+    <p>Mirrored and flipped images are tasks too. They are started
+    as soon as the image they are made from is decoded, so they
+    never hold up a thread waiting.
+
+    <p>Images are usually queued with load() first, and fetched
+    with getImage() once everything is queued.
+*/
+public class ImageLoader {
+
+    /**
+        Transform that mirrors an image (flips it horizontally).
+    */
+    public static final int MIRROR = 1;
+
+    /**
+        Transform that flips an image upside-down.
+    */
+    public static final int FLIP = 2;
+
+    private ResourceManager resourceManager;
+    private ThreadPool threadPool;
+    private HashMap tasks;
+    private int numDone;
+
+    /**
+        Creates a new ImageLoader that decodes images with the
+        specified ResourceManager, with one thread for each
+        processor.
+    */
+    public ImageLoader(ResourceManager resourceManager) {
+        this(resourceManager,
+            Runtime.getRuntime().availableProcessors());
+    }
+
+
+    /**
+        Creates a new ImageLoader that decodes images with the
+        specified ResourceManager, on the specified number of
+        threads.
+    */
+    public ImageLoader(ResourceManager resourceManager,
+        int numThreads)
+    {
+        this.resourceManager = resourceManager;
+        threadPool = new ThreadPool(numThreads);
+        tasks = new HashMap();
+    }
+
+
+    /**
+        Queues an image to be decoded, if it isn't already.
+    */
+    public void load(String name) {
+        load(name, 0);
+    }
+
+
+    /**
+        Queues an image to be decoded and transformed, if it isn't
+        already. The transform is MIRROR, FLIP, both, or 0.
+    */
+    public synchronized void load(String name, int transform) {
+        getTask(name, transform);
+    }
+
+
+    /**
+        Gets an image, waiting for it to be decoded. The image is
+        queued if it isn't already.
+    */
+    public Image getImage(String name) {
+        return getImage(name, 0);
+    }
+
+
+    /**
+        Gets an image, waiting for it to be decoded and
+        transformed. The image is queued if it isn't already.
+        Throws a RuntimeException if the image couldn't be
+        decoded.
+    */
+    public synchronized Image getImage(String name, int transform) {
+        ImageTask task = getTask(name, transform);
+        while (!task.done) {
+            try {
+                wait();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted loading " +
+                    name);
+            }
+        }
+        if (task.error != null) {
+            throw new RuntimeException("Can't load image " + name,
+                task.error);
+        }
+        return task.image;
+    }
+
+
+    /**
+        Gets how much of the queued work is done, from 0 to 1.
+    */
+    public synchronized float getProgress() {
+        if (tasks.size() == 0) {
+            return 0;
+        }
+        return (float)numDone / tasks.size();
+    }
+
+
+    /**
+        Finishes any queued work and stops the threads.
+    */
+    public void close() {
+        threadPool.join();
+    }
+
+
+    /**
+        Gets the task for an image, creating it, and the tasks it
+        depends on, if needed. The caller must hold the lock.
+    */
+    private ImageTask getTask(String name, int transform) {
+        String key = name + "/" + transform;
+        ImageTask task = (ImageTask)tasks.get(key);
+        if (task == null) {
+            ImageTask source = null;
+            if (transform == (MIRROR | FLIP)) {
+                source = getTask(name, MIRROR);
+            }
+            else if (transform != 0) {
+                source = getTask(name, 0);
+            }
+            task = new ImageTask(name, transform, source);
+            tasks.put(key, task);
+            if (source == null || source.done) {
+                threadPool.runTask(task);
+            }
+            else {
+                source.dependents.add(task);
+            }
+        }
+        return task;
+    }
+
+
+    /**
+        Marks a task as done, and starts the tasks waiting on it.
+    */
+    private synchronized void finish(ImageTask task) {
+        task.done = true;
+        numDone++;
+        for (int i=0; i<task.dependents.size(); i++) {
+            threadPool.runTask((Runnable)task.dependents.get(i));
+        }
+        task.dependents.clear();
+        notifyAll();
+    }
+
+
+    /**
+        Decodes one image, or transforms the image of its source
+        task.
+    */
+    private class ImageTask implements Runnable {
+
+        private String name;
+        private int transform;
+        private ImageTask source;
+        private ArrayList dependents = new ArrayList();
+        // set by the pooled thread, read under the lock once done
+        private Image image;
+        private Throwable error;
+        private boolean done;
+
+        public ImageTask(String name, int transform,
+            ImageTask source)
+        {
+            this.name = name;
+            this.transform = transform;
+            this.source = source;
+        }
+
+
+        public void run() {
+            try {
+                if (source == null) {
+                    image = resourceManager.readImage(name);
+                }
+                else if (source.error != null) {
+                    error = source.error;
+                }
+                else if (transform == MIRROR) {
+                    image = resourceManager.getMirrorImage(
+                        source.image);
+                }
+                else {
+                    image = resourceManager.getFlippedImage(
+                        source.image);
+                }
+            }
+            catch (Throwable t) {
+                error = t;
+            }
+            finish(this);
+        }
+    }
+}
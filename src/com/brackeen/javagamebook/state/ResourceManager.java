@@ -2,9 +2,11 @@ package com.brackeen.javagamebook.state;
 
 import java.awt.*;
 import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.URL;
-import javax.swing.ImageIcon;
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 import javax.sound.midi.Sequence;
 import com.brackeen.javagamebook.sound.*;
 
@@ -18,6 +20,7 @@ public class ResourceManager {
     private GraphicsConfiguration gc;
     private SoundManager soundManager;
     private MidiPlayer midiPlayer;
+    private volatile ImageLoader imageLoader;
 
     /**
         Creates a new ResourceManager with the specified
@@ -29,18 +32,32 @@ public class ResourceManager {
         this.gc = gc;
         this.soundManager = soundManager;
         this.midiPlayer = midiPlayer;
+    }
 
-        try {
-            java.util.Enumeration e = getClass().getClassLoader().getResources("com.brackeen.javagamebook.state.ResourceManager");
-            while (e.hasMoreElements()) {
-                System.out.println(e.nextElement());
-            }
 
-        }
-        catch (IOException ex) {
+    /**
+        Gets the GraphicsConfiguration images are made for.
+    */
+    public GraphicsConfiguration getGraphicsConfiguration() {
+        return gc;
+    }
 
-        }
 
+    /**
+        Sets the ImageLoader that loads images, or null to load
+        each image on the calling thread.
+    */
+    public void setImageLoader(ImageLoader imageLoader) {
+        this.imageLoader = imageLoader;
+    }
+
+
+    /**
+        Gets the ImageLoader that loads images, or null if there
+        is none.
+    */
+    public ImageLoader getImageLoader() {
+        return imageLoader;
     }
 
 
@@ -48,8 +65,66 @@ public class ResourceManager {
         Gets an image from the images/ directory.
     */
     public Image loadImage(String name) {
+        return loadImage(name, 0);
+    }
+
+
+    /**
+        Gets an image from the images/ directory, mirrored and/or
+        flipped (see ImageLoader.MIRROR and ImageLoader.FLIP).
+    */
+    public Image loadImage(String name, int transform) {
+        ImageLoader loader = imageLoader;
+        if (loader != null) {
+            return loader.getImage(name, transform);
+        }
+        Image image;
+        try {
+            image = readImage(name);
+        }
+        catch (IOException ex) {
+            throw new RuntimeException("Can't load image " + name, ex);
+        }
+        if ((transform & ImageLoader.MIRROR) != 0) {
+            image = getMirrorImage(image);
+        }
+        if ((transform & ImageLoader.FLIP) != 0) {
+            image = getFlippedImage(image);
+        }
+        return image;
+    }
+
+
+    /**
+        Decodes an image from the images/ directory, and copies it
+        to an image made for the screen, so it draws fast.
+    */
+    protected Image readImage(String name) throws IOException {
         String filename = "images/" + name;
-        return new ImageIcon(getResource(filename)).getImage();
+        InputStream in = getResourceAsStream(filename);
+        if (in == null) {
+            throw new FileNotFoundException(filename);
+        }
+        BufferedImage image;
+        try {
+            // decode in memory rather than through a temp file
+            image = ImageIO.read(new MemoryCacheImageInputStream(
+                new BufferedInputStream(in)));
+        }
+        finally {
+            in.close();
+        }
+        if (image == null) {
+            throw new IOException("Unknown image format: " +
+                filename);
+        }
+
+        Image newImage = gc.createCompatibleImage(image.getWidth(),
+            image.getHeight(), image.getTransparency());
+        Graphics2D g = (Graphics2D)newImage.getGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return newImage;
     }
 
 
@@ -97,12 +172,26 @@ public class ResourceManager {
     }
 
 
+    /**
+        Loads a sound, or returns null if there is no
+        SoundManager (the game is running without sound).
+    */
     public Sound loadSound(String name) {
+        if (soundManager == null) {
+            return null;
+        }
         return soundManager.getSound(getResourceAsStream(name));
     }
 
 
+    /**
+        Loads a midi sequence, or returns null if there is no
+        MidiPlayer (the game is running without sound).
+    */
     public Sequence loadSequence(String name) {
+        if (midiPlayer == null) {
+            return null;
+        }
         return midiPlayer.getSequence(getResourceAsStream(name));
     }
 
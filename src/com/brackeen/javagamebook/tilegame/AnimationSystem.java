@@ -0,0 +1,27 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.graphics.SpriteStore;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+
+/**
+    The AnimationSystem updates the Animation and state time of
+    every Creature that isn't dead, and animates the pickups,
+    which never move.
+*/
+public class AnimationSystem implements GameSystem {
+
+    public void update(TileMap map, int chunk, long elapsedTime) {
+        SpriteStore store = map.getChunkSprites(chunk);
+        int[] state = store.getState();
+        for (int j=0; j<store.size(); j++) {
+            if (state[j] != Creature.STATE_DEAD) {
+                store.getSprite(j).update(elapsedTime);
+            }
+        }
+
+        SpriteStore pickups = map.getChunkPickups(chunk);
+        for (int j=0; j<pickups.size(); j++) {
+            pickups.getSprite(j).updateAnimation(elapsedTime);
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.graphics.SpriteStore;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+
+/**
+    The ChunkStreamer class loads the chunks of a streamed TileMap
+    from a binary map file (see MapCompiler) as the camera
+    moves, so only the chunks near the camera are in memory.
+
+    <p>Each update, the chunks within LOAD_AHEAD chunks of the
+    active window are read and decoded in the background, on the
+    common ForkJoinPool, and added to the map on the game thread
+    once they are ready. Chunks more than one chunk further away
+    are unloaded. Chunks in the active window are loaded at once
+    if they aren't ready, which only happens when the camera
+    jumps (like when the map starts).
+
+    <p>The first time a chunk is loaded, its Sprites come from the
+    map file's spawn table. When it is unloaded, the position,
+    velocity and state of its Creatures and the positions of its
+    pickups are kept, and those are restored the next time it is
+    loaded.
+*/
+public class ChunkStreamer {
+
+    /**
+        The number of chunks on each side of the active window
+        that are loaded ahead of the camera.
+    */
+    public static final int LOAD_AHEAD = 2;
+
+    private TileGameResourceManager resources;
+    private TileMap map;
+    private ByteBuffer data;
+    private int width;
+    private int height;
+    private int numSpawns;
+    private int tilesStart;
+    private int spawnsStart;
+
+    // range of chunks that may be loaded
+    private int firstLoaded;
+    private int lastLoaded = -1;
+
+    // chunks being decoded, and the saved state of unloaded
+    // chunks, by chunk (null if none)
+    private DecodeTask[] pending;
+    private DormantChunk[] dormant;
+    private Sprite[] unloaded = new Sprite[16];
+
+    /**
+        Creates a new ChunkStreamer that loads the chunks of the
+        specified map from the specified binary map file, which
+        must be positioned at its start. The map must have been
+        created with no chunks loaded, and the same size as the
+        map file.
+    */
+    public ChunkStreamer(TileGameResourceManager resources,
+        TileMap map, ByteBuffer data) throws IOException
+    {
+        this.resources = resources;
+        this.map = map;
+        this.data = data;
+        int start = data.position();
+        if (data.remaining() < MapCompiler.HEADER_SIZE ||
+            data.getInt(start) != MapCompiler.MAGIC ||
+            data.getInt(start + 4) != MapCompiler.VERSION)
+        {
+            throw new IOException("Not a map file");
+        }
+        width = data.getInt(start + 8);
+        height = data.getInt(start + 12);
+        numSpawns = data.getInt(start + 16);
+        tilesStart = start + MapCompiler.HEADER_SIZE;
+        spawnsStart = tilesStart + width * height * 2;
+        if (width != map.getWidth() || height != map.getHeight()) {
+            throw new IOException("Map size doesn't match");
+        }
+        pending = new DecodeTask[map.getNumChunks()];
+        dormant = new DormantChunk[map.getNumChunks()];
+    }
+
+
+    /**
+        Sets the manager whose pools the Sprites of streamed
+        chunks come from and are released to.
+    */
+    void setResources(TileGameResourceManager resources) {
+        this.resources = resources;
+    }
+
+
+    /**
+        Loads the chunks near the specified active window of
+        chunks, and unloads the chunks far from it.
+    */
+    public void update(int firstActive, int lastActive) {
+        int numChunks = map.getNumChunks();
+        int first = Math.max(0, firstActive - LOAD_AHEAD);
+        int last = Math.min(numChunks - 1, lastActive + LOAD_AHEAD);
+
+        // the active window must be loaded now
+        for (int c=firstActive; c<=lastActive; c++) {
+            if (!map.isChunkLoaded(c)) {
+                install(getChunkData(c));
+            }
+        }
+
+        // start loading the chunks ahead, and add the ready ones
+        for (int c=first; c<=last; c++) {
+            if (map.isChunkLoaded(c)) {
+                continue;
+            }
+            if (pending[c] == null) {
+                pending[c] = new DecodeTask(c);
+                ForkJoinPool.commonPool().execute(pending[c]);
+            }
+            else if (pending[c].isDone()) {
+                install(getChunkData(c));
+            }
+        }
+
+        // unload the chunks behind, keeping one more on each side
+        // so a camera moving back and forth doesn't thrash, and
+        // stop decoding the ones no longer wanted. Chunks are only
+        // loaded or decoded between firstLoaded and lastLoaded.
+        int keepFirst = first - 1;
+        int keepLast = last + 1;
+        for (int c=Math.min(firstLoaded, first);
+            c<=Math.max(lastLoaded, last); c++)
+        {
+            if (c < keepFirst || c > keepLast) {
+                if (pending[c] != null) {
+                    pending[c].cancel(false);
+                    pending[c] = null;
+                }
+                unload(c);
+            }
+        }
+        firstLoaded = Math.max(0, keepFirst);
+        lastLoaded = Math.min(numChunks - 1, keepLast);
+    }
+
+
+    /**
+        Stops decoding chunks. The map's Sprites are left for the
+        caller to release.
+    */
+    public void close() {
+        for (int c=0; c<pending.length; c++) {
+            if (pending[c] != null) {
+                pending[c].cancel(false);
+                pending[c] = null;
+            }
+            dormant[c] = null;
+        }
+    }
+
+
+    /**
+        Gets the decoded data of a chunk, from its background task
+        if there is one (waiting for it if needed), or by decoding
+        it now.
+    */
+    private ChunkData getChunkData(int chunk) {
+        DecodeTask task = pending[chunk];
+        pending[chunk] = null;
+        if (task != null) {
+            try {
+                return task.get();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            catch (ExecutionException ex) {
+                ex.printStackTrace();
+            }
+        }
+        return decode(chunk);
+    }
+
+
+    /**
+        Reads the tiles and spawns of a chunk from the map file.
+        Only reads the file, so it can run on any thread.
+    */
+    private ChunkData decode(int chunk) {
+        ByteBuffer buffer = data.duplicate();
+        int firstColumn = chunk * TileMap.CHUNK_TILES;
+        int columns = Math.min(TileMap.CHUNK_TILES, width - firstColumn);
+
+        ChunkData chunkData = new ChunkData();
+        chunkData.chunk = chunk;
+        chunkData.tiles = new short[TileMap.CHUNK_TILES * height];
+        for (int y=0; y<height; y++) {
+            int pos = tilesStart + (y * width + firstColumn) * 2;
+            for (int x=0; x<columns; x++) {
+                chunkData.tiles[y * TileMap.CHUNK_TILES + x] =
+                    buffer.getShort(pos + x * 2);
+            }
+        }
+        TileMap.clearUnknownTiles(map.getPalette(), chunkData.tiles);
+
+        // the spawn table is sorted by column
+        int start = findSpawn(buffer, firstColumn);
+        int end = findSpawn(buffer, firstColumn + columns);
+        chunkData.numSpawns = end - start;
+        chunkData.spawns = new int[chunkData.numSpawns * 3];
+        for (int i=0; i<chunkData.numSpawns; i++) {
+            int pos = spawnsStart + (start + i) * MapCompiler.SPAWN_SIZE;
+            chunkData.spawns[i * 3] = buffer.getInt(pos);
+            chunkData.spawns[i * 3 + 1] = buffer.getInt(pos + 4);
+            chunkData.spawns[i * 3 + 2] = buffer.getChar(pos + 8);
+        }
+        return chunkData;
+    }
+
+
+    /**
+        Finds the first spawn in the spawn table at or right of
+        the specified column.
+    */
+    private int findSpawn(ByteBuffer buffer, int column) {
+        int low = 0;
+        int high = numSpawns;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int x = buffer.getInt(spawnsStart +
+                middle * MapCompiler.SPAWN_SIZE);
+            if (x < column) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+
+    /**
+        Adds a decoded chunk to the map, with the Sprites it had
+        when it was unloaded, or else the Sprites of the spawn
+        table.
+    */
+    private void install(ChunkData chunkData) {
+        int chunk = chunkData.chunk;
+        map.loadChunk(chunk, chunkData.tiles);
+        DormantChunk saved = dormant[chunk];
+        dormant[chunk] = null;
+        if (saved != null) {
+            saved.restore();
+            return;
+        }
+
+        int firstColumn = chunk * TileMap.CHUNK_TILES;
+        for (int i=0; i<chunkData.numSpawns; i++) {
+            int x = chunkData.spawns[i * 3];
+            int y = chunkData.spawns[i * 3 + 1];
+            char ch = (char)chunkData.spawns[i * 3 + 2];
+            // letters on a tile are used as the tile
+            SpritePool pool = resources.getMapSpritePool(ch);
+            if (pool != null && chunkData.tiles[
+                y * TileMap.CHUNK_TILES + x - firstColumn] ==
+                TilePalette.EMPTY)
+            {
+                resources.addSprite(map, pool, x, y);
+            }
+        }
+    }
+
+
+    /**
+        Saves the state of a chunk's Sprites, unloads it, and
+        releases its Sprites.
+    */
+    private void unload(int chunk) {
+        if (!map.isChunkLoaded(chunk)) {
+            return;
+        }
+        SpriteStore creatures = map.getChunkSprites(chunk);
+        SpriteStore pickups = map.getChunkPickups(chunk);
+        dormant[chunk] = new DormantChunk(creatures, pickups);
+
+        // the stores are emptied by unloadChunk()
+        int count = creatures.size() + pickups.size();
+        if (unloaded.length < count) {
+            unloaded = new Sprite[count * 2];
+        }
+        for (int j=0; j<creatures.size(); j++) {
+            unloaded[j] = creatures.getSprite(j);
+        }
+        for (int j=0; j<pickups.size(); j++) {
+            unloaded[creatures.size() + j] = pickups.getSprite(j);
+        }
+        map.unloadChunk(chunk);
+        for (int j=0; j<count; j++) {
+            resources.releaseSprite(unloaded[j]);
+            unloaded[j] = null;
+        }
+    }
+
+
+    /**
+        Decodes a chunk in the background.
+    */
+    private class DecodeTask extends RecursiveTask<ChunkData> {
+
+        private static final long serialVersionUID = 1L;
+
+        private int chunk;
+
+        public DecodeTask(int chunk) {
+            this.chunk = chunk;
+        }
+
+        protected ChunkData compute() {
+            return decode(chunk);
+        }
+    }
+
+
+    /**
+        The tiles and spawns of a chunk, read from the map file.
+    */
+    private static class ChunkData {
+        int chunk;
+        short[] tiles;
+        // tile x, tile y and map character of each spawn
+        int[] spawns;
+        int numSpawns;
+    }
+
+
+    /**
+        The saved Sprites of an unloaded chunk.
+    */
+    private class DormantChunk {
+
+        private char[] kinds;
+        private float[] values;
+        private int[] states;
+        private int numCreatures;
+        private char[] pickupKinds;
+        private float[] pickupValues;
+        private int numPickups;
+
+        // creatures: x, y, dx, dy; pickups: x, y
+        private static final int CREATURE_VALUES = 4;
+        private static final int PICKUP_VALUES = 2;
+
+        public DormantChunk(SpriteStore creatures,
+            SpriteStore pickups)
+        {
+            kinds = new char[creatures.size()];
+            values = new float[creatures.size() * CREATURE_VALUES];
+            states = new int[creatures.size()];
+            for (int j=0; j<creatures.size(); j++) {
+                Sprite sprite = creatures.getSprite(j);
+                char ch = resources.getMapChar(sprite);
+                // dead creatures and unknown sprites are dropped
+                if (ch == 0 || creatures.getState()[j] ==
+                    Creature.STATE_DEAD)
+                {
+                    continue;
+                }
+                int k = numCreatures++;
+                kinds[k] = ch;
+                values[k * CREATURE_VALUES] = creatures.getX()[j];
+                values[k * CREATURE_VALUES + 1] = creatures.getY()[j];
+                values[k * CREATURE_VALUES + 2] =
+                    creatures.getVelocityX()[j];
+                values[k * CREATURE_VALUES + 3] =
+                    creatures.getVelocityY()[j];
+                states[k] = creatures.getState()[j];
+            }
+
+            pickupKinds = new char[pickups.size()];
+            pickupValues = new float[pickups.size() * PICKUP_VALUES];
+            for (int j=0; j<pickups.size(); j++) {
+                char ch = resources.getMapChar(pickups.getSprite(j));
+                if (ch == 0) {
+                    continue;
+                }
+                int k = numPickups++;
+                pickupKinds[k] = ch;
+                pickupValues[k * PICKUP_VALUES] = pickups.getX()[j];
+                pickupValues[k * PICKUP_VALUES + 1] = pickups.getY()[j];
+            }
+        }
+
+
+        /**
+            Adds the saved Sprites to the map.
+        */
+        public void restore() {
+            for (int k=0; k<numCreatures; k++) {
+                Creature creature = (Creature)
+                    resources.getMapSpritePool(kinds[k]).acquire();
+                creature.setX(values[k * CREATURE_VALUES]);
+                creature.setY(values[k * CREATURE_VALUES + 1]);
+                map.addSprite(creature);
+                creature.setState(states[k]);
+                creature.setVelocityX(values[k * CREATURE_VALUES + 2]);
+                creature.setVelocityY(values[k * CREATURE_VALUES + 3]);
+            }
+            for (int k=0; k<numPickups; k++) {
+                Sprite pickup =
+                    resources.getMapSpritePool(pickupKinds[k]).acquire();
+                pickup.setX(pickupValues[k * PICKUP_VALUES]);
+                pickup.setY(pickupValues[k * PICKUP_VALUES + 1]);
+                map.addPickup(pickup);
+            }
+        }
+    }
+}
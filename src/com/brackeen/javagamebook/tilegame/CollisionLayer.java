@@ -0,0 +1,37 @@
+package com.brackeen.javagamebook.tilegame;
+
+/**
+    The CollisionLayer class defines the collision layers used by
+    the tile game and which layers interact with each other. Each
+    layer is a single bit. A layer's mask has a bit set for every
+    layer it collides with, and the masks are kept symmetric, so
+    two Sprites collide only if each mask accepts the other's
+    layer.
+
+    <p>Layers are ordered so that in every pair that interacts,
+    the Sprite that "acts" (the player, then the player's bullet)
+    has the lower bit. Bullets aren't Sprites, but the
+    ProjectileSystem gives each bullet a layer and mask from this
+    class too.
+*/
+public class CollisionLayer {
+
+    public static final int PLAYER = 1 << 0;
+    public static final int BULLET = 1 << 1;
+    public static final int ENEMY = 1 << 2;
+    public static final int ENEMY_BULLET = 1 << 3;
+    public static final int POWERUP = 1 << 4;
+
+    public static final int PLAYER_MASK =
+        ENEMY | ENEMY_BULLET | POWERUP;
+    public static final int BULLET_MASK =
+        ENEMY | ENEMY_BULLET;
+    public static final int ENEMY_MASK =
+        PLAYER | BULLET;
+    public static final int ENEMY_BULLET_MASK =
+        PLAYER | BULLET;
+    public static final int POWERUP_MASK =
+        PLAYER;
+
+    private CollisionLayer() { }
+}
@@ -0,0 +1,111 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    The ContactBuffer class holds every pair of overlapping
+    Sprites found by one collision pass, tagged with the type of
+    the contact. The arrays are kept between passes and only grow,
+    so once the buffer is big enough a pass doesn't allocate.
+*/
+public class ContactBuffer {
+
+    /**
+        The player touched a PowerUp. The player is first.
+    */
+    public static final int PLAYER_POWERUP = 0;
+
+    /**
+        The player touched an enemy Creature. The player is first.
+    */
+    public static final int PLAYER_CREATURE = 1;
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    private Sprite[] first;
+    private Sprite[] second;
+    private int[] types;
+    private int size;
+
+    /**
+        Creates a new, empty ContactBuffer.
+    */
+    public ContactBuffer() {
+        first = new Sprite[INITIAL_CAPACITY];
+        second = new Sprite[INITIAL_CAPACITY];
+        types = new int[INITIAL_CAPACITY];
+    }
+
+
+    /**
+        Removes all contacts from this buffer.
+    */
+    public void clear() {
+        // drop references so removed sprites can be collected
+        for (int i=0; i<size; i++) {
+            first[i] = null;
+            second[i] = null;
+        }
+        size = 0;
+    }
+
+
+    /**
+        Adds a contact of the specified type between two Sprites.
+    */
+    public void add(int type, Sprite s1, Sprite s2) {
+        if (size == types.length) {
+            grow();
+        }
+        types[size] = type;
+        first[size] = s1;
+        second[size] = s2;
+        size++;
+    }
+
+
+    /**
+        Gets the number of contacts in this buffer.
+    */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+        Gets the type of the specified contact.
+    */
+    public int getType(int index) {
+        return types[index];
+    }
+
+
+    /**
+        Gets the first Sprite of the specified contact.
+    */
+    public Sprite getFirst(int index) {
+        return first[index];
+    }
+
+
+    /**
+        Gets the second Sprite of the specified contact.
+    */
+    public Sprite getSecond(int index) {
+        return second[index];
+    }
+
+
+    private void grow() {
+        int capacity = types.length * 2;
+        Sprite[] newFirst = new Sprite[capacity];
+        Sprite[] newSecond = new Sprite[capacity];
+        int[] newTypes = new int[capacity];
+        System.arraycopy(first, 0, newFirst, 0, size);
+        System.arraycopy(second, 0, newSecond, 0, size);
+        System.arraycopy(types, 0, newTypes, 0, size);
+        first = newFirst;
+        second = newSecond;
+        types = newTypes;
+    }
+}
@@ -0,0 +1,44 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.graphics.SpriteStore;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+
+/**
+    The DeathSystem scores every dead enemy and queues every dead
+    Creature to be removed from the map, publishing a CREATURE_DIED
+    event for each. It changes the score, so it runs as a merge
+    system.
+*/
+public class DeathSystem implements GameSystem {
+
+    private GameSession session;
+    private GameEventBus events;
+
+    /**
+        Creates a new DeathSystem that scores in the specified
+        GameSession and publishes to the specified GameEventBus.
+    */
+    public DeathSystem(GameSession session, GameEventBus events) {
+        this.session = session;
+        this.events = events;
+    }
+
+
+    public void update(TileMap map, int chunk, long elapsedTime) {
+        SpriteStore store = map.getChunkSprites(chunk);
+        int[] state = store.getState();
+        for (int j=0; j<store.size(); j++) {
+            if (state[j] == Creature.STATE_DEAD) {
+                Creature creature = (Creature)store.getSprite(j);
+                if (creature.getCollisionLayer() == CollisionLayer.ENEMY) {
+                    session.addScore(1);
+                    session.addHealth(5);
+                }
+                events.publish(GameEventBus.CREATURE_DIED,
+                    creature.getCollisionLayer(), creature.getX(),
+                    creature.getY(), 0);
+                map.queueRemove(creature);
+            }
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import com.brackeen.javagamebook.graphics.*;
+import com.brackeen.javagamebook.tilegame.sprites.*;
+
+/**
+    The GameEnvironment class drives a batch of games for training
+    agents. reset() starts a number of games, and each step()
+    applies one action to every game, runs them all on a
+    SimulationHost, and fills in an observation, a reward and a
+    done flag for each game.
+
+    <p>An action is a set of ACTION_ bits. The player's
+    GameActions are pressed directly, so no InputManager or key
+    events are involved.
+
+    <p>Observations are written into one direct (off-heap)
+    FloatBuffer, in native byte order, that is reused by every
+    step. Each game gets OBSERVATION_SIZE floats:
+    <ul>
+    <li>PATCH_COLUMNS x PATCH_ROWS tiles around the player, row
+    by row: 1 for a solid tile (or outside the map), 0 for an
+    empty one.
+    <li>PLAYER_FEATURES floats: the player's position as a
+    fraction of the map size, velocity, health / 40, score, and
+    1 or 0 for an active Star and Gas power up.
+    <li>MAX_CREATURES creatures closest to the player,
+    CREATURE_FEATURES floats each: 1 if present, position
+    relative to the player in screens, horizontal velocity, and
+    the type tag. Missing creatures are all 0.
+    <li>MAX_BULLETS enemy bullets closest to the player,
+    BULLET_FEATURES floats each: 1 if present, and position
+    relative to the player in screens.
+    </ul>
+
+    <p>The reward of a step is the change in score plus the change
+    in health times the health weight. A game is done when the
+    player dies, when the player reaches the goal of the map,
+    which adds the goal reward, or when the game has run the
+    maximum number of steps. It is then replaced by a new game,
+    whose first observation is the one returned. Deaths and goals
+    are read from each game's GameEventBus.
+
+    <p>Games are timed by their game clock (see
+    GameSession.getTime()), not the system time, so the same
+    actions always give the same observations and rewards,
+    however fast the host runs (see GameEnvironmentCheck).
+*/
+public class GameEnvironment {
+
+    public static final int ACTION_LEFT = 1;
+    public static final int ACTION_RIGHT = 2;
+    public static final int ACTION_UP = 4;
+    public static final int ACTION_DOWN = 8;
+    public static final int ACTION_SHOOT = 16;
+
+    public static final int PATCH_COLUMNS = 16;
+    public static final int PATCH_ROWS = 12;
+    public static final int PLAYER_FEATURES = 8;
+    public static final int MAX_CREATURES = 8;
+    public static final int CREATURE_FEATURES = 5;
+    public static final int MAX_BULLETS = 4;
+    public static final int BULLET_FEATURES = 3;
+
+    public static final int OBSERVATION_SIZE =
+        PATCH_COLUMNS * PATCH_ROWS +
+        PLAYER_FEATURES +
+        MAX_CREATURES * CREATURE_FEATURES +
+        MAX_BULLETS * BULLET_FEATURES;
+
+    private static final float SCREEN_SIZE = 800;
+    private static final float MAX_HEALTH = 40;
+
+    private SimulationHost host;
+    private String mapName;
+    private int frameSkip = 1;
+    private int maxSteps;
+    private float healthWeight = 1;
+    private float goalReward = 10;
+
+    private FloatBuffer observations;
+    private float[] rewards = new float[0];
+    private boolean[] dones = new boolean[0];
+    private int[] steps = new int[0];
+    private GameEventBus.Reader[] readers = new GameEventBus.Reader[0];
+    private StepEvents stepEvents = new StepEvents();
+    private int[] scores = new int[0];
+    private float[] healths = new float[0];
+
+    // nearest creatures and bullets, by squared distance
+    private float[] nearDistance =
+        new float[Math.max(MAX_CREATURES, MAX_BULLETS)];
+    private int[] nearIndex = new int[nearDistance.length];
+    private SpriteStore[] nearStore =
+        new SpriteStore[nearDistance.length];
+
+    /**
+        Creates a new GameEnvironment whose games play the map
+        with the specified name, on the specified number of
+        threads.
+    */
+    public GameEnvironment(String mapName, int numThreads) {
+        this.mapName = mapName;
+        host = new SimulationHost(numThreads);
+    }
+
+
+    /**
+        Sets the number of ticks each step runs (each action is
+        held for that many ticks).
+    */
+    public void setFrameSkip(int frameSkip) {
+        this.frameSkip = Math.max(1, frameSkip);
+    }
+
+
+    /**
+        Sets the number of steps after which a game is done, or 0
+        for no limit.
+    */
+    public void setMaxSteps(int maxSteps) {
+        this.maxSteps = maxSteps;
+    }
+
+
+    /**
+        Sets how much a change in health counts in the reward,
+        relative to a change in score.
+    */
+    public void setHealthWeight(float healthWeight) {
+        this.healthWeight = healthWeight;
+    }
+
+
+    /**
+        Sets the reward for reaching the goal of the map, which
+        ends the game.
+    */
+    public void setGoalReward(float goalReward) {
+        this.goalReward = goalReward;
+    }
+
+
+    /**
+        Gets the number of games.
+    */
+    public int getNumGames() {
+        return host.getNumSessions();
+    }
+
+
+    /**
+        Gets the SimulationHost running the games.
+    */
+    public SimulationHost getHost() {
+        return host;
+    }
+
+
+    /**
+        Starts the specified number of new games, replacing any
+        running games, and returns their first observations.
+    */
+    public FloatBuffer reset(int numGames) {
+        host.removeAllSessions();
+        for (int i=0; i<numGames; i++) {
+            host.addSession(new GameSession(mapName));
+        }
+        if (observations == null ||
+            observations.capacity() != numGames * OBSERVATION_SIZE)
+        {
+            observations = ByteBuffer.allocateDirect(
+                numGames * OBSERVATION_SIZE * 4).
+                order(ByteOrder.nativeOrder()).asFloatBuffer();
+            rewards = new float[numGames];
+            dones = new boolean[numGames];
+            steps = new int[numGames];
+            readers = new GameEventBus.Reader[numGames];
+            scores = new int[numGames];
+            healths = new float[numGames];
+        }
+        for (int i=0; i<numGames; i++) {
+            rewards[i] = 0;
+            dones[i] = false;
+            startGame(i);
+        }
+        return observations;
+    }
+
+
+    /**
+        Applies an action (a set of ACTION_ bits) to every game,
+        runs the games for one step, and returns the new
+        observations. The rewards and done flags of the step are
+        available from getRewards() and getDones().
+    */
+    public FloatBuffer step(int[] actions) {
+        int numGames = host.getNumSessions();
+        for (int i=0; i<numGames; i++) {
+            int action = actions[i];
+            host.getState(i).setActions(
+                (action & ACTION_LEFT) != 0,
+                (action & ACTION_RIGHT) != 0,
+                (action & ACTION_UP) != 0,
+                (action & ACTION_DOWN) != 0,
+                (action & ACTION_SHOOT) != 0);
+        }
+
+        host.run(frameSkip);
+
+        for (int i=0; i<numGames; i++) {
+            MainGameState state = host.getState(i);
+            GameSession session = state.getSession();
+
+            // the map is reloaded or changed on the tick after the
+            // player dies or reaches the goal, so both are read
+            // from the events rather than from the map
+            stepEvents.died = false;
+            stepEvents.reachedGoal = false;
+            readers[i].poll(stepEvents);
+            boolean died = stepEvents.died;
+            float health = died?0:session.getHealth();
+            rewards[i] = session.getScore() - scores[i] +
+                healthWeight * (health - healths[i]);
+            if (stepEvents.reachedGoal && !died) {
+                rewards[i] += goalReward;
+            }
+            steps[i]++;
+            dones[i] = died || stepEvents.reachedGoal ||
+                (maxSteps > 0 && steps[i] >= maxSteps);
+
+            if (dones[i]) {
+                host.resetSession(i, new GameSession(mapName));
+                startGame(i);
+            }
+            else {
+                scores[i] = session.getScore();
+                healths[i] = health;
+                writeObservation(i);
+            }
+        }
+        return observations;
+    }
+
+
+    /**
+        Gets the observations of the last step, OBSERVATION_SIZE
+        floats per game. The buffer is reused by every step.
+    */
+    public FloatBuffer getObservations() {
+        return observations;
+    }
+
+
+    /**
+        Gets the rewards of the last step. The array is reused by
+        every step.
+    */
+    public float[] getRewards() {
+        return rewards;
+    }
+
+
+    /**
+        Gets the done flags of the last step. The array is reused
+        by every step.
+    */
+    public boolean[] getDones() {
+        return dones;
+    }
+
+
+    /**
+        Stops the threads of the host.
+    */
+    public void close() {
+        host.close();
+    }
+
+
+    private void startGame(int index) {
+        MainGameState state = host.getState(index);
+        steps[index] = 0;
+        readers[index] = state.getEvents().addReader();
+        scores[index] = state.getSession().getScore();
+        healths[index] = state.getSession().getHealth();
+        writeObservation(index);
+    }
+
+
+    /**
+        Writes the observation of a game into the buffer.
+    */
+    private void writeObservation(int index) {
+        MainGameState state = host.getState(index);
+        GameSession session = state.getSession();
+        TileMap map = state.getMap();
+        Sprite player = map.getPlayer();
+        int pos = index * OBSERVATION_SIZE;
+
+        // tiles around the player
+        float px = player.getX() + player.getWidth() / 2;
+        float py = player.getY() + player.getHeight() / 2;
+        int left = TileMapRenderer.pixelsToTiles(px) -
+            PATCH_COLUMNS / 2;
+        int top = TileMapRenderer.pixelsToTiles(py) - PATCH_ROWS / 2;
+        for (int y=top; y<top+PATCH_ROWS; y++) {
+            for (int x=left; x<left+PATCH_COLUMNS; x++) {
+                boolean solid = x < 0 || x >= map.getWidth() ||
+                    y < 0 || y >= map.getHeight() ||
+                    map.isSolid(x, y);
+                observations.put(pos++, solid?1:0);
+            }
+        }
+
+        // the player
+        observations.put(pos++, player.getX() /
+            TileMapRenderer.tilesToPixels(map.getWidth()));
+        observations.put(pos++, player.getY() /
+            TileMapRenderer.tilesToPixels(map.getHeight()));
+        observations.put(pos++, player.getVelocityX());
+        observations.put(pos++, player.getVelocityY());
+        observations.put(pos++, session.getHealth() / MAX_HEALTH);
+        observations.put(pos++, session.getScore());
+        observations.put(pos++, session.isStarActive()?1:0);
+        observations.put(pos++, session.isGasActive()?1:0);
+
+        pos = writeCreatures(map, px, py, pos);
+        writeBullets(map, px, py, pos);
+    }
+
+
+    /**
+        Writes the creatures closest to the specified point,
+        looking in the chunks near it. Returns the position after
+        the creatures.
+    */
+    private int writeCreatures(TileMap map, float px, float py,
+        int pos)
+    {
+        int count = 0;
+        int playerChunk = map.getChunk(px);
+        int firstChunk = Math.max(0, playerChunk - 2);
+        int lastChunk = Math.min(map.getNumChunks() - 1,
+            playerChunk + 2);
+        for (int c=firstChunk; c<=lastChunk; c++) {
+            SpriteStore store = map.getChunkSprites(c);
+            float[] x = store.getX();
+            float[] y = store.getY();
+            int[] state = store.getState();
+            for (int j=0; j<store.size(); j++) {
+                if (state[j] == Creature.STATE_NORMAL) {
+                    float ddx = x[j] - px;
+                    float ddy = y[j] - py;
+                    count = addNearest(ddx * ddx + ddy * ddy, store, j,
+                        count, MAX_CREATURES);
+                }
+            }
+        }
+
+        for (int k=0; k<MAX_CREATURES; k++) {
+            if (k < count) {
+                SpriteStore store = nearStore[k];
+                int j = nearIndex[k];
+                observations.put(pos++, 1);
+                observations.put(pos++,
+                    (store.getX()[j] - px) / SCREEN_SIZE);
+                observations.put(pos++,
+                    (store.getY()[j] - py) / SCREEN_SIZE);
+                observations.put(pos++, store.getVelocityX()[j]);
+                observations.put(pos++, store.getType()[j]);
+                nearStore[k] = null;
+            }
+            else {
+                for (int f=0; f<CREATURE_FEATURES; f++) {
+                    observations.put(pos++, 0);
+                }
+            }
+        }
+        return pos;
+    }
+
+
+    /**
+        Writes the enemy bullets closest to the specified point.
+    */
+    private void writeBullets(TileMap map, float px, float py,
+        int pos)
+    {
+        ProjectileSystem projectiles = map.getProjectiles();
+        int count = 0;
+        for (int i=0; i<projectiles.size(); i++) {
+            if (projectiles.getLayer(i) == CollisionLayer.ENEMY_BULLET) {
+                float ddx = projectiles.getX(i) - px;
+                float ddy = projectiles.getY(i) - py;
+                count = addNearest(ddx * ddx + ddy * ddy, null, i,
+                    count, MAX_BULLETS);
+            }
+        }
+
+        for (int k=0; k<MAX_BULLETS; k++) {
+            if (k < count) {
+                int i = nearIndex[k];
+                observations.put(pos++, 1);
+                observations.put(pos++,
+                    (projectiles.getX(i) - px) / SCREEN_SIZE);
+                observations.put(pos++,
+                    (projectiles.getY(i) - py) / SCREEN_SIZE);
+            }
+            else {
+                for (int f=0; f<BULLET_FEATURES; f++) {
+                    observations.put(pos++, 0);
+                }
+            }
+        }
+    }
+
+
+    /**
+        Adds an entry to the sorted list of nearest entries, if it
+        is one of the closest max entries. Returns the new number
+        of entries.
+    */
+    private int addNearest(float distance, SpriteStore store,
+        int index, int count, int max)
+    {
+        if (count == max && distance >= nearDistance[count - 1]) {
+            return count;
+        }
+        int k = Math.min(count, max - 1);
+        while (k > 0 && nearDistance[k - 1] > distance) {
+            nearDistance[k] = nearDistance[k - 1];
+            nearIndex[k] = nearIndex[k - 1];
+            nearStore[k] = nearStore[k - 1];
+            k--;
+        }
+        nearDistance[k] = distance;
+        nearIndex[k] = index;
+        nearStore[k] = store;
+        return Math.min(count + 1, max);
+    }
+
+
+    /**
+        Notes whether the player died or reached the goal during
+        a step.
+    */
+    private static class StepEvents implements GameEventHandler {
+
+        private boolean died;
+        private boolean reachedGoal;
+
+        public void handleEvent(int type, int kind, float x, float y,
+            float amount)
+        {
+            if (type == GameEventBus.PLAYER_DAMAGED && kind == 1) {
+                died = true;
+            }
+            else if (type == GameEventBus.POWERUP_ACQUIRED &&
+                kind == GameEventBus.POWERUP_GOAL)
+            {
+                reachedGoal = true;
+            }
+        }
+    }
+}
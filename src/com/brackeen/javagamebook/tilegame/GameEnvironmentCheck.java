@@ -0,0 +1,125 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+/**
+    The GameEnvironmentCheck class checks that a GameEnvironment
+    is reproducible: two environments given the same actions give
+    the same observations, rewards and done flags. The actions are
+    random, from the same seed, and hold ACTION_SHOOT most of the
+    time, so shooting and enemy fire are part of the check.
+*/
+public class GameEnvironmentCheck {
+
+    /**
+        Runs the check and prints the first step where the
+        environments differ, if any. Arguments: number of steps,
+        number of games, map name. Exits with status 1 if the
+        environments differ.
+    */
+    public static void main(String[] args) {
+        int numSteps = (args.length > 0)?Integer.parseInt(args[0]):2000;
+        int numGames = (args.length > 1)?Integer.parseInt(args[1]):4;
+        String mapName = (args.length > 2)?args[2]:"2";
+
+        System.setProperty("java.awt.headless", "true");
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        GameEnvironment first = new GameEnvironment(mapName,
+            numThreads);
+        GameEnvironment second = new GameEnvironment(mapName,
+            numThreads);
+        first.setMaxSteps(500);
+        second.setMaxSteps(500);
+
+        int failedStep = -1;
+        if (!isSame(first.reset(numGames), second.reset(numGames))) {
+            failedStep = 0;
+        }
+        Random random = new Random(1);
+        int[] actions = new int[numGames];
+        int numDone = 0;
+        float totalReward = 0;
+        for (int s=0; s<numSteps && failedStep < 0; s++) {
+            for (int i=0; i<numGames; i++) {
+                // mostly run right, jumping now and then
+                int action = GameEnvironment.ACTION_RIGHT;
+                int roll = random.nextInt(10);
+                if (roll == 0) {
+                    action = GameEnvironment.ACTION_LEFT;
+                }
+                else if (roll == 1) {
+                    action |= GameEnvironment.ACTION_UP;
+                }
+                if (random.nextInt(4) != 0) {
+                    action |= GameEnvironment.ACTION_SHOOT;
+                }
+                actions[i] = action;
+            }
+            FloatBuffer a = first.step(actions);
+            FloatBuffer b = second.step(actions);
+            if (!isSame(a, b) || !isSame(first.getRewards(),
+                second.getRewards()) || !isSame(first.getDones(),
+                second.getDones()))
+            {
+                failedStep = s + 1;
+            }
+            for (int i=0; i<numGames; i++) {
+                totalReward += first.getRewards()[i];
+                if (first.getDones()[i]) {
+                    numDone++;
+                }
+            }
+        }
+        first.close();
+        second.close();
+
+        if (failedStep >= 0) {
+            System.out.println("The environments differ at step " +
+                failedStep);
+            System.exit(1);
+        }
+        System.out.println("The environments are the same for " +
+            numSteps + " steps of " + numGames + " games (" +
+            numDone + " games done, total reward " + totalReward +
+            ")");
+    }
+
+
+    private static boolean isSame(FloatBuffer a, FloatBuffer b) {
+        if (a.capacity() != b.capacity()) {
+            return false;
+        }
+        for (int i=0; i<a.capacity(); i++) {
+            // compare the bits, so NaNs are the same too
+            if (Float.floatToIntBits(a.get(i)) !=
+                Float.floatToIntBits(b.get(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static boolean isSame(float[] a, float[] b) {
+        for (int i=0; i<a.length; i++) {
+            if (Float.floatToIntBits(a[i]) !=
+                Float.floatToIntBits(b[i]))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static boolean isSame(boolean[] a, boolean[] b) {
+        for (int i=0; i<a.length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,185 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+    The GameEventBus class carries gameplay events from the
+    simulation to anything that reacts to them, like audio, the
+    HUD, telemetry or achievements, without the simulation
+    calling into them.
+
+    <p>Events are kept in a ring buffer of parallel arrays that is
+    allocated once, so publishing an event never allocates. Only
+    one thread (the one updating the game) may publish. Each
+    consumer has its own Reader, which it can poll on any thread
+    and at any rate; readers never block the publisher or each
+    other. The publisher never waits either: if the slowest
+    reader is a full buffer behind, new events are dropped and
+    counted (see getNumDropped()).
+
+    <p>Each event has a type, a kind, a position and an amount.
+    What kind and amount mean depends on the type.
+*/
+public class GameEventBus {
+
+    /**
+        The player picked up a PowerUp. The kind is one of the
+        POWERUP_ values.
+    */
+    public static final int POWERUP_ACQUIRED = 0;
+
+    /**
+        A Creature died and was removed from the map. The kind is
+        its collision layer.
+    */
+    public static final int CREATURE_DIED = 1;
+
+    /**
+        A bullet was fired. The kind is its collision layer, and
+        the amount is its horizontal velocity.
+    */
+    public static final int SHOT_FIRED = 2;
+
+    /**
+        The player was hurt. The amount is the health lost, and
+        the kind is 1 if the player died, 0 otherwise.
+    */
+    public static final int PLAYER_DAMAGED = 3;
+
+    public static final int POWERUP_STAR = 0;
+    public static final int POWERUP_MUSIC = 1;
+    public static final int POWERUP_GOAL = 2;
+    public static final int POWERUP_GAS = 3;
+    public static final int POWERUP_EXPLODE = 4;
+
+    private int mask;
+    private int[] types;
+    private int[] kinds;
+    private float[] x;
+    private float[] y;
+    private float[] amounts;
+
+    // sequence of the next event to publish. Only the publisher
+    // writes it; setting it publishes the events before it.
+    private AtomicLong cursor = new AtomicLong();
+    private volatile Reader[] readers = new Reader[0];
+    private long dropped;
+
+    /**
+        Creates a new GameEventBus that holds the specified number
+        of events, rounded up to a power of two.
+    */
+    public GameEventBus(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mask = size - 1;
+        types = new int[size];
+        kinds = new int[size];
+        x = new float[size];
+        y = new float[size];
+        amounts = new float[size];
+    }
+
+
+    /**
+        Adds a Reader that sees every event published from now on.
+    */
+    public synchronized Reader addReader() {
+        Reader reader = new Reader(cursor.get());
+        Reader[] newReaders = new Reader[readers.length + 1];
+        System.arraycopy(readers, 0, newReaders, 0, readers.length);
+        newReaders[readers.length] = reader;
+        readers = newReaders;
+        return reader;
+    }
+
+
+    /**
+        Removes a Reader, so events are no longer dropped when it
+        falls behind.
+    */
+    public synchronized void removeReader(Reader reader) {
+        Reader[] oldReaders = readers;
+        for (int i=0; i<oldReaders.length; i++) {
+            if (oldReaders[i] == reader) {
+                Reader[] newReaders = new Reader[oldReaders.length - 1];
+                System.arraycopy(oldReaders, 0, newReaders, 0, i);
+                System.arraycopy(oldReaders, i + 1, newReaders, i,
+                    newReaders.length - i);
+                readers = newReaders;
+                return;
+            }
+        }
+    }
+
+
+    /**
+        Publishes an event. If a reader is too far behind to make
+        room for it, the event is dropped.
+    */
+    public void publish(int type, int kind, float x, float y,
+        float amount)
+    {
+        long next = cursor.get();
+        Reader[] r = readers;
+        for (int i=0; i<r.length; i++) {
+            if (next - r[i].sequence.get() > mask) {
+                dropped++;
+                return;
+            }
+        }
+        int slot = (int)next & mask;
+        types[slot] = type;
+        kinds[slot] = kind;
+        this.x[slot] = x;
+        this.y[slot] = y;
+        amounts[slot] = amount;
+        cursor.set(next + 1);
+    }
+
+
+    /**
+        Gets the number of events dropped because a reader was
+        too far behind. Only the publishing thread should call
+        this.
+    */
+    public long getNumDropped() {
+        return dropped;
+    }
+
+
+    /**
+        A consumer's position in a GameEventBus. A Reader should
+        only be polled by one thread at a time.
+    */
+    public class Reader {
+
+        // sequence of the next event to read. Setting it frees
+        // the slots before it for the publisher.
+        private AtomicLong sequence;
+
+        private Reader(long sequence) {
+            this.sequence = new AtomicLong(sequence);
+        }
+
+
+        /**
+            Passes every event published since the last poll to
+            the specified handler, in order. Returns the number of
+            events handled.
+        */
+        public int poll(GameEventHandler handler) {
+            long next = sequence.get();
+            long available = cursor.get();
+            for (long s=next; s<available; s++) {
+                int slot = (int)s & mask;
+                handler.handleEvent(types[slot], kinds[slot],
+                    x[slot], y[slot], amounts[slot]);
+            }
+            sequence.set(available);
+            return (int)(available - next);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.brackeen.javagamebook.tilegame;
+
+/**
+    A GameEventHandler consumes the events of a GameEventBus,
+    through a Reader.
+*/
+public interface GameEventHandler {
+
+    /**
+        Handles one event. See GameEventBus for what the type,
+        kind and amount mean.
+    */
+    public void handleEvent(int type, int kind, float x, float y,
+        float amount);
+}
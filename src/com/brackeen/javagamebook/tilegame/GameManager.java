@@ -3,6 +3,8 @@ package com.brackeen.javagamebook.tilegame;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
 import java.util.function.Supplier;
 import java.util.logging.*;
 import javax.swing.*;
@@ -19,22 +21,55 @@ import com.brackeen.javagamebook.util.TimeSmoothie;
     GameManager manages all parts of the game.
 */
 public class GameManager extends GameCore {
-    static String mapname;
-    static boolean mapflag = false;
     static final Logger log = Logger.getLogger("com.brackeen.javagamebook.tilegame");
 
+    // where the game is saved
+    private static final File SAVE_FILE =
+        new File(System.getProperty("user.home"), ".tilegame.sav");
+
+    /**
+        Starts the game, carrying on from the last save if there
+        is one. Arguments: the name of a map to play (optional),
+        -new to start a new game instead of loading the save, and
+        -stream to stream every map, not just long ones (see
+        TileGameResourceManager.setStreamWidth()).
+    */
     public static void main(String[] args) {
-        try{
-            mapname = args[0];
-            mapflag = true;
+        String mapName = null;
+        boolean newGame = false;
+        boolean streamAllMaps = false;
+        for (int i=0; i<args.length; i++) {
+            if (args[i].equals("-new")) {
+                newGame = true;
+            }
+            else if (args[i].equals("-stream")) {
+                streamAllMaps = true;
+            }
+            else {
+                mapName = args[i];
+            }
         }
-        catch(Exception e){
-            mapname = "default.txt";
-            mapflag= false;
+
+        GameSession session = null;
+        if (mapName != null) {
+            session = new GameSession(mapName);
+        }
+        else if (!newGame && SAVE_FILE.exists()) {
+            // carry on from the last save
+            try {
+                session = SaveGame.load(SAVE_FILE);
+            }
+            catch (IOException ex) {
+                log.warning("can't load saved game: " + ex);
+            }
+        }
+        if (session == null) {
+            session = new GameSession();
         }
 
-        System.out.println(mapname);
-        new GameManager().run();
+        GameManager gameManager = new GameManager(session);
+        gameManager.setStreamAllMaps(streamAllMaps);
+        gameManager.run();
     }
 
     // uncompressed, 44100Hz, 16-bit, mono, signed, little-endian
@@ -48,6 +83,28 @@ public class GameManager extends GameCore {
     private InputManager inputManager;
     private GameStateManager gameStateManager;
     private TimeSmoothie timeSmoothie = new TimeSmoothie();
+    private GameSession session;
+    private SaveGame saveGame;
+    private boolean streamAllMaps;
+
+
+    /**
+        Creates a new GameManager that plays the specified
+        GameSession.
+    */
+    public GameManager(GameSession session) {
+        this.session = session;
+    }
+
+
+    /**
+        Sets whether every map is streamed, or only long ones.
+        Must be called before the game runs.
+    */
+    public void setStreamAllMaps(boolean streamAllMaps) {
+        this.streamAllMaps = streamAllMaps;
+    }
+
 
     public void init() {
 
@@ -69,17 +126,25 @@ public class GameManager extends GameCore {
 
 
         log.info("init resource manager");
-        resourceManager = new TileGameResourceManager(
+        TileGameResourceManager tileResources =
+            new TileGameResourceManager(
             screen.getFullScreenWindow().getGraphicsConfiguration(),
             soundManager, midiPlayer);
+        if (streamAllMaps) {
+            tileResources.setStreamWidth(0);
+        }
+        resourceManager = tileResources;
 
 
         log.info("init game states");
         gameStateManager = new GameStateManager(inputManager,
             resourceManager.loadImage("loadingsplash.jpg"));
-        gameStateManager.addState(new MainGameState(
-            soundManager, midiPlayer,
-            screen.getWidth(), screen.getHeight()));
+        saveGame = new SaveGame(SAVE_FILE);
+        MainGameState mainGameState = new MainGameState(
+            soundManager, midiPlayer, session,
+            screen.getWidth(), screen.getHeight());
+        mainGameState.setSaveGame(saveGame);
+        gameStateManager.addState(mainGameState);
         gameStateManager.addState(
             new SplashGameState("gamesplash.jpg"));
 
@@ -101,6 +166,12 @@ public class GameManager extends GameCore {
     public void stop() {
         log.info("stopping game");
         super.stop();
+        log.info("saving game");
+        saveGame.save(session);
+        IOException error = saveGame.flush();
+        if (error != null) {
+            log.warning("can't save game: " + error);
+        }
         log.info("closing midi player");
         midiPlayer.close();
         log.info("closing sound manager");
@@ -0,0 +1,283 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.nio.ByteBuffer;
+
+/**
+    The GameSession class holds the state of one game: which maps
+    are played, the player's health and score, and the power ups
+    in effect. Everything that changes while a game is played is
+    kept here rather than in static fields, so several games can
+    run in the same JVM without sharing anything.
+
+    <p>The session also has its own clock, the game time, which
+    only moves when the game is updated. Every gameplay timer
+    reads it instead of the system time, so a game plays the same
+    however fast it is updated, and the same actions always give
+    the same game.
+*/
+public class GameSession {
+
+    /**
+        The health the player starts with on every map.
+    */
+    public static final float START_HEALTH = 20;
+
+    private String mapName;
+    private int currentMap;
+
+    // the game time, in milliseconds
+    private long time;
+
+    private float health = START_HEALTH;
+    private int score;
+
+    private boolean starActive;
+    private long starTime;
+    private long starCount;
+
+    private boolean gasActive;
+    private long gasTime;
+    private long gasCount;
+
+    /**
+        Creates a new GameSession that plays the maps in order.
+    */
+    public GameSession() {
+        this(null);
+    }
+
+
+    /**
+        Creates a new GameSession that plays the map with the
+        specified name (for "maps/map2.txt", the name is "2").
+        If the name is null, the maps are played in order.
+    */
+    public GameSession(String mapName) {
+        this.mapName = mapName;
+    }
+
+
+    /**
+        Gets the name of the map chosen for this session, or null
+        if the maps are played in order.
+    */
+    public String getMapName() {
+        return mapName;
+    }
+
+
+    /**
+        Gets the number of the current map when the maps are
+        played in order, or 0 if no map has been loaded yet.
+    */
+    public int getCurrentMap() {
+        return currentMap;
+    }
+
+
+    /**
+        Sets the number of the current map when the maps are
+        played in order.
+    */
+    public void setCurrentMap(int currentMap) {
+        this.currentMap = currentMap;
+    }
+
+
+    /**
+        Gets the game time, in milliseconds: the total time this
+        session has been updated for.
+    */
+    public long getTime() {
+        return time;
+    }
+
+
+    /**
+        Moves the game time forward by the specified number of
+        milliseconds. Called once per update.
+    */
+    public void advanceTime(long elapsedTime) {
+        time += elapsedTime;
+    }
+
+
+    /**
+        Gets the player's health.
+    */
+    public float getHealth() {
+        return health;
+    }
+
+
+    /**
+        Sets the player's health.
+    */
+    public void setHealth(float health) {
+        this.health = health;
+    }
+
+
+    /**
+        Adds to (or, with a negative amount, takes from) the
+        player's health.
+    */
+    public void addHealth(float amount) {
+        health += amount;
+    }
+
+
+    /**
+        Gets the player's score.
+    */
+    public int getScore() {
+        return score;
+    }
+
+
+    /**
+        Sets the player's score.
+    */
+    public void setScore(int score) {
+        this.score = score;
+    }
+
+
+    /**
+        Adds to the player's score.
+    */
+    public void addScore(int amount) {
+        score += amount;
+    }
+
+
+    /**
+        Checks if a Star power up is protecting the player.
+    */
+    public boolean isStarActive() {
+        return starActive;
+    }
+
+
+    /**
+        Starts or stops the Star power up. Starting it records the
+        time and resets its move count.
+    */
+    public void setStarActive(boolean starActive) {
+        this.starActive = starActive;
+        if (starActive) {
+            starTime = time;
+        }
+        starCount = 0;
+    }
+
+
+    /**
+        Gets the game time the Star power up was picked up.
+    */
+    public long getStarTime() {
+        return starTime;
+    }
+
+
+    /**
+        Gets the number of updates the player has moved while the
+        Star power up was active.
+    */
+    public long getStarCount() {
+        return starCount;
+    }
+
+
+    /**
+        Checks if a Gas power up is stopping the player from
+        shooting.
+    */
+    public boolean isGasActive() {
+        return gasActive;
+    }
+
+
+    /**
+        Starts or stops the Gas power up. Starting it records the
+        time, and both reset its move count.
+    */
+    public void setGasActive(boolean gasActive) {
+        this.gasActive = gasActive;
+        if (gasActive) {
+            gasTime = time;
+        }
+        gasCount = 0;
+    }
+
+
+    /**
+        Gets the game time the Gas power up was picked up.
+    */
+    public long getGasTime() {
+        return gasTime;
+    }
+
+
+    /**
+        Gets the number of updates the player has moved while the
+        Gas power up was active.
+    */
+    public long getGasCount() {
+        return gasCount;
+    }
+
+
+    /**
+        Counts one update in which the player moved, for the
+        Star and Gas power ups.
+    */
+    public void countMove() {
+        starCount++;
+        gasCount++;
+    }
+
+
+    /**
+        Gets the number of bytes writeState() writes.
+    */
+    public int getStateSize() {
+        return 50;
+    }
+
+
+    /**
+        Writes the game time, health, score and power up timers
+        of this session to a buffer, for a snapshot of the game.
+        The map isn't written: a snapshot belongs to one map.
+    */
+    public void writeState(ByteBuffer buffer) {
+        buffer.putLong(time);
+        buffer.putFloat(health);
+        buffer.putInt(score);
+        buffer.put((byte)(starActive?1:0));
+        buffer.putLong(starTime);
+        buffer.putLong(starCount);
+        buffer.put((byte)(gasActive?1:0));
+        buffer.putLong(gasTime);
+        buffer.putLong(gasCount);
+    }
+
+
+    /**
+        Reads back the state written by writeState(). The game
+        time goes back to the time it was written, so the timers
+        go on from where they were.
+    */
+    public void readState(ByteBuffer buffer) {
+        time = buffer.getLong();
+        health = buffer.getFloat();
+        score = buffer.getInt();
+        starActive = (buffer.get() == 1);
+        starTime = buffer.getLong();
+        starCount = buffer.getLong();
+        gasActive = (buffer.get() == 1);
+        gasTime = buffer.getLong();
+        gasCount = buffer.getLong();
+    }
+}
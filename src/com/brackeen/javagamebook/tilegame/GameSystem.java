@@ -0,0 +1,24 @@
+package com.brackeen.javagamebook.tilegame;
+
+/**
+    A GameSystem updates one part of the game, such as gravity,
+    movement or AI, for the Creatures in one chunk of a TileMap.
+    A system works on the arrays of the chunk's SpriteStore and
+    only picks the entries whose type tag has the bits it cares
+    about (see Creature.TYPE_CREATURE). A new kind of Creature gets
+    its behavior from its type bits and the systems that look for
+    them, not from changes to the update loop.
+
+    <p>MainGameState runs its chunk systems in integrateChunk(),
+    where different chunks can be updated at the same time, so
+    those systems may only change the Creatures of their own
+    chunk. Merge systems run one chunk at a time, in order, and
+    may change anything.
+*/
+public interface GameSystem {
+
+    /**
+        Updates the Creatures in the specified chunk of the map.
+    */
+    public void update(TileMap map, int chunk, long elapsedTime);
+}
@@ -0,0 +1,32 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.graphics.SpriteStore;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+
+/**
+    The GravitySystem pulls down every Creature that is alive or
+    dying, except flying Creatures (TYPE_FLYING) while they are
+    alive. It works only on the store arrays.
+*/
+public class GravitySystem implements GameSystem {
+
+    public void update(TileMap map, int chunk, long elapsedTime) {
+        SpriteStore store = map.getChunkSprites(chunk);
+        int numSprites = store.size();
+        int[] type = store.getType();
+        int[] state = store.getState();
+        float[] dy = store.getVelocityY();
+        float gravity = MainGameState.GRAVITY * elapsedTime;
+        for (int j=0; j<numSprites; j++) {
+            int t = type[j];
+            int st = state[j];
+            if ((t & Creature.TYPE_CREATURE) != 0 &&
+                st != Creature.STATE_DEAD &&
+                ((t & Creature.TYPE_FLYING) == 0 ||
+                st != Creature.STATE_NORMAL))
+            {
+                dy[j] += gravity;
+            }
+        }
+    }
+}
@@ -2,7 +2,9 @@ package com.brackeen.javagamebook.tilegame;
 
 import java.awt.*;
 import java.awt.event.KeyEvent;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import javax.sound.midi.Sequence;
 import javax.sound.midi.Sequencer;
 
@@ -18,17 +20,17 @@ public class MainGameState implements GameState {
     private static final int DRUM_TRACK = 1;
 
     public static final float GRAVITY = 0.002f;
-    public static float HEALTH = 20;
-    public static int SCORE = 0;
-    public static boolean star_flag = false;
-    public static long star_time = 0;
-    public static long star_count = 0;
 
-    public static boolean gas_flag = false;
-    public static long gas_time = 0;
-    public static long gas_count = 0;
+    private static final int EVENT_CAPACITY = 1024;
 
+    // bytes of the shooting and resting timers in a snapshot
+    private static final int TIMER_STATE_SIZE = 40;
 
+    // the least time, in milliseconds, between two shots
+    private static final long SHOT_DELAY = 200;
+
+
+    private GameSession session;
     private SoundManager soundManager;
     private MidiPlayer midiPlayer;
     private TileGameResourceManager resourceManager;
@@ -36,10 +38,52 @@ public class MainGameState implements GameState {
     private int height;
 
     private Point pointCache = new Point();
+    private ContactBuffer contacts = new ContactBuffer();
+    private Sprite[] broadphase = new Sprite[0];
+    private Sprite[] sortedSprites = new Sprite[0];
+    private int[] startColumns = new int[0];
+    private int[] columnCounts = new int[0];
+    private SpriteBounds bounds = new SpriteBounds();
+    private int[] hits = new int[0];
+
+    // the simulated part of the map
+    private int activeLeft;
+    private int firstActiveChunk;
+    private int lastActiveChunk;
+    private Sprite[] movedSprites = new Sprite[16];
+    private int numMovedSprites;
+    private boolean parallelUpdate;
+
+    // systems run on each active chunk, possibly in parallel,
+    // then systems run on each chunk one at a time, in order
+    private GameSystem[] chunkSystems = new GameSystem[0];
+    private GameSystem[] mergeSystems = new GameSystem[0];
+    private MovementSystem movementSystem;
+
+    // gameplay events, and the reader that plays their sounds
+    private GameEventBus events = new GameEventBus(EVENT_CAPACITY);
+    private GameEventBus.Reader soundReader;
+    private SoundEffects soundEffects = new SoundEffects();
     private Sound prizeSound;
     private Sound boopSound;
     private Sequence music;
     private Sequence prize;
+
+    // snapshots of the game, and the Sprites the map started
+    // with, which a snapshot can put back
+    private RewindBuffer rewindBuffer;
+    private int snapshotInterval;
+    private int updatesSinceSnapshot;
+    private Sprite[] rewindSprites = new Sprite[0];
+    private int numRewindSprites;
+    private int rewindSpritesSize;
+
+    // where the session is saved each time a map starts
+    private SaveGame saveGame;
+
+    // whether the player reached the goal of the current map
+    private boolean goalReached;
+
     private TileMap map;
     private TileMapRenderer renderer;
 
@@ -55,9 +99,17 @@ public class MainGameState implements GameState {
     // new stuff
     private GameAction shoot;
 
+    /**
+        Creates a new MainGameState that plays the specified
+        GameSession on a screen of the specified size. The
+        SoundManager and MidiPlayer can be null to play without
+        sound.
+    */
     public MainGameState(SoundManager soundManager,
-        MidiPlayer midiPlayer, int width, int height)
+        MidiPlayer midiPlayer, GameSession session, int width,
+        int height)
     {
+        this.session = session;
         this.soundManager = soundManager;
         this.midiPlayer = midiPlayer;
         this.width = width;
@@ -74,6 +126,45 @@ public class MainGameState implements GameState {
 
         renderer = new TileMapRenderer();
         toggleDrumPlayback();
+
+        movementSystem = new MovementSystem();
+        addChunkSystem(new GravitySystem());
+        addChunkSystem(movementSystem);
+        addChunkSystem(new AnimationSystem());
+        addMergeSystem(new DeathSystem(session, events));
+        addMergeSystem(new ShootingSystem(session, events));
+        if (soundManager != null || midiPlayer != null) {
+            soundReader = events.addReader();
+        }
+    }
+
+
+    /**
+        Adds a system that is run on every active chunk of the map
+        each update, after the systems already added. Chunk
+        systems may run on different chunks at the same time (see
+        GameSystem).
+    */
+    public void addChunkSystem(GameSystem system) {
+        chunkSystems = add(chunkSystems, system);
+    }
+
+
+    /**
+        Adds a system that is run on every active chunk of the map
+        each update, one chunk at a time and in order, after the
+        chunk systems.
+    */
+    public void addMergeSystem(GameSystem system) {
+        mergeSystems = add(mergeSystems, system);
+    }
+
+
+    private GameSystem[] add(GameSystem[] systems, GameSystem system) {
+        GameSystem[] newSystems = new GameSystem[systems.length + 1];
+        System.arraycopy(systems, 0, newSystems, 0, systems.length);
+        newSystems[systems.length] = system;
+        return newSystems;
     }
 
     public String getName() {
@@ -81,6 +172,269 @@ public class MainGameState implements GameState {
     }
 
 
+    /**
+        Gets the GameSession played by this state.
+    */
+    public GameSession getSession() {
+        return session;
+    }
+
+
+    /**
+        Gets the GameEventBus this state publishes gameplay events
+        to.
+    */
+    public GameEventBus getEvents() {
+        return events;
+    }
+
+
+    /**
+        Gets the current map.
+    */
+    public TileMap getMap() {
+        return map;
+    }
+
+
+    /**
+        Presses or releases the player's GameActions directly,
+        without an InputManager. Released actions are reset, so
+        they don't count as pressed on the next update.
+    */
+    public void setActions(boolean left, boolean right, boolean up,
+        boolean down, boolean shoot)
+    {
+        setAction(moveLeft, left);
+        setAction(moveRight, right);
+        setAction(moveUp, up);
+        setAction(moveDown, down);
+        setAction(this.shoot, shoot);
+    }
+
+
+    private void setAction(GameAction action, boolean pressed) {
+        if (pressed) {
+            action.press();
+        }
+        else {
+            action.reset();
+        }
+    }
+
+
+    /**
+        Sets the SaveGame the session is saved to each time a map
+        starts, or null to not save.
+    */
+    public void setSaveGame(SaveGame saveGame) {
+        this.saveGame = saveGame;
+    }
+
+
+    /**
+        Sets the RewindBuffer that keeps snapshots of this game,
+        or null to stop taking snapshots. A snapshot is taken
+        right away, then every interval updates, and again each
+        time the map starts over.
+
+        <p>A snapshot holds the session's health, score and
+        timers, the player, every Sprite the map started with,
+        and the bullets. While snapshots are taken, Sprites
+        removed from the map aren't returned to their pools, so
+        a rewind can put them back.
+
+        <p>Streamed maps can't be rewound, since their Sprites
+        come and go with their chunks. While a streamed map is
+        played, the buffer is emptied, no snapshots are taken and
+        rewind() returns false (see isRewindable()).
+    */
+    public void setRewindBuffer(RewindBuffer rewindBuffer,
+        int interval)
+    {
+        if (this.rewindBuffer != null) {
+            releaseRemovedSprites();
+        }
+        this.rewindBuffer = rewindBuffer;
+        snapshotInterval = Math.max(1, interval);
+        if (rewindBuffer != null && map != null) {
+            startSnapshots();
+        }
+        else {
+            numRewindSprites = 0;
+        }
+    }
+
+
+    /**
+        Gets the RewindBuffer that keeps snapshots of this game,
+        or null if no snapshots are taken.
+    */
+    public RewindBuffer getRewindBuffer() {
+        return rewindBuffer;
+    }
+
+
+    /**
+        Checks if snapshots are taken of the current map, so it
+        can be rewound: a RewindBuffer is set and the map isn't
+        streamed.
+    */
+    public boolean isRewindable() {
+        return rewindBuffer != null && map != null &&
+            map.getStreamer() == null;
+    }
+
+
+    /**
+        Takes a snapshot of the game now. Does nothing if the map
+        can't be rewound.
+    */
+    public void takeSnapshot() {
+        if (!isRewindable()) {
+            return;
+        }
+        ByteBuffer frame = rewindBuffer.startFrame(
+            session.getStateSize() + TIMER_STATE_SIZE +
+            map.getPlayer().getStateSize() + rewindSpritesSize +
+            map.getProjectiles().getStateSize());
+        session.writeState(frame);
+        frame.put((byte)(isShooting?1:0));
+        frame.putInt(shootingCount);
+        frame.put((byte)(coolDown?1:0));
+        frame.putLong(coolDownStart);
+        frame.putLong(bulletStart);
+        frame.putLong(previousShot);
+        frame.put((byte)(wasShooting?1:0));
+        frame.put((byte)(prevMotionLess?1:0));
+        frame.putLong(prevMotionLessTime);
+        map.getPlayer().writeState(frame);
+        for (int i=0; i<numRewindSprites; i++) {
+            Sprite sprite = rewindSprites[i];
+            if (sprite.getHandle() != SpriteList.NO_HANDLE) {
+                frame.put((byte)1);
+                sprite.writeState(frame);
+            }
+            else {
+                frame.put((byte)0);
+            }
+        }
+        map.getProjectiles().writeState(frame);
+        rewindBuffer.finishFrame();
+        updatesSinceSnapshot = 0;
+    }
+
+
+    /**
+        Puts the game back the way it was in a snapshot, by age
+        (0 is the newest snapshot). Newer snapshots are dropped.
+        Returns false if there is no such snapshot, or the map
+        can't be rewound.
+    */
+    public boolean rewind(int age) {
+        if (!isRewindable() || age < 0 ||
+            age >= rewindBuffer.size())
+        {
+            return false;
+        }
+        ByteBuffer frame = rewindBuffer.getFrame(age);
+        // the game time goes back too, so the timers, which are
+        // game times, go on from where they were
+        session.readState(frame);
+        isShooting = (frame.get() == 1);
+        shootingCount = frame.getInt();
+        coolDown = (frame.get() == 1);
+        coolDownStart = frame.getLong();
+        bulletStart = frame.getLong();
+        previousShot = frame.getLong();
+        wasShooting = (frame.get() == 1);
+        prevMotionLess = (frame.get() == 1);
+        prevMotionLessTime = frame.getLong();
+        map.getPlayer().readState(frame);
+        for (int i=0; i<numRewindSprites; i++) {
+            Sprite sprite = rewindSprites[i];
+            boolean inMap = (sprite.getHandle() != SpriteList.NO_HANDLE);
+            if (frame.get() == 1) {
+                sprite.readState(frame);
+                if (inMap) {
+                    if (!(sprite instanceof PowerUp)) {
+                        map.moveSprite(sprite);
+                    }
+                }
+                else if (sprite instanceof PowerUp) {
+                    map.addPickup(sprite);
+                }
+                else {
+                    map.addSprite(sprite);
+                }
+            }
+            else if (inMap) {
+                map.removeSprite(sprite);
+            }
+        }
+        map.getProjectiles().readState(frame);
+        rewindBuffer.dropNewest(age);
+        updatesSinceSnapshot = 0;
+        updateActiveWindow();
+        return true;
+    }
+
+
+    /**
+        Starts playing a newly loaded map.
+    */
+    private void startMap() {
+        // loads the visible chunks of a streamed map
+        updateActiveWindow();
+        checkGoalInView();
+        if (rewindBuffer != null) {
+            startSnapshots();
+        }
+        if (saveGame != null) {
+            saveGame.save(session);
+        }
+    }
+
+
+    /**
+        Keeps the Sprites of a newly loaded map, drops the
+        snapshots of the last map, and takes the first snapshot.
+        A streamed map only drops the snapshots.
+    */
+    private void startSnapshots() {
+        rewindBuffer.clear();
+        if (!isRewindable()) {
+            numRewindSprites = 0;
+            return;
+        }
+        numRewindSprites = map.getNumSprites();
+        if (rewindSprites.length < numRewindSprites) {
+            rewindSprites = new Sprite[numRewindSprites];
+        }
+        rewindSpritesSize = 0;
+        for (int i=0; i<numRewindSprites; i++) {
+            rewindSprites[i] = map.getSprite(i);
+            rewindSpritesSize += 1 + rewindSprites[i].getStateSize();
+        }
+        takeSnapshot();
+    }
+
+
+    /**
+        Returns the Sprites kept for snapshots that are no longer
+        in the map to their pools.
+    */
+    private void releaseRemovedSprites() {
+        for (int i=0; i<numRewindSprites; i++) {
+            if (rewindSprites[i].getHandle() == SpriteList.NO_HANDLE) {
+                resourceManager.releaseSprite(rewindSprites[i]);
+            }
+            rewindSprites[i] = null;
+        }
+        numRewindSprites = 0;
+    }
+
+
     public String checkForStateChange() {
         return stateChange;
     }
@@ -94,8 +448,16 @@ public class MainGameState implements GameState {
         renderer.setBackground(
             resourceManager.loadImage("whitehouse.jpg"));
 
-        // load first map
-        map = resourceManager.loadNextMap();
+        // load first map, or the map of a saved session
+        if (session.getCurrentMap() > 0) {
+            map = resourceManager.reloadMap(session);
+        }
+        else {
+            map = resourceManager.loadNextMap(session);
+        }
+        if (map != null) {
+            startMap();
+        }
 
         // load sounds
         prizeSound = resourceManager.loadSound("sounds/prize.wav");
@@ -113,20 +475,28 @@ public class MainGameState implements GameState {
         inputManager.mapToKey(exit, KeyEvent.VK_ESCAPE);
         inputManager.mapToKey(shoot, KeyEvent.VK_S);
 
-        soundManager.setPaused(false);
-        midiPlayer.setPaused(false);
-//        midiPlayer.play(music, true);
+        if (soundManager != null) {
+            soundManager.setPaused(false);
+        }
+        if (midiPlayer != null) {
+            midiPlayer.setPaused(false);
+//            midiPlayer.play(music, true);
+        }
         toggleDrumPlayback();
     }
 
     public void stop() {
-        soundManager.setPaused(true);
-        midiPlayer.setPaused(true);
+        if (soundManager != null) {
+            soundManager.setPaused(true);
+        }
+        if (midiPlayer != null) {
+            midiPlayer.setPaused(true);
+        }
     }
 
 
     public void draw(Graphics2D g) {
-        renderer.draw(g, map, width, height);
+        renderer.draw(g, map, session, width, height);
     }
 
 
@@ -134,6 +504,9 @@ public class MainGameState implements GameState {
         Turns on/off drum playback in the midi music (track 1).
     */
     public void toggleDrumPlayback() {
+        if (midiPlayer == null) {
+            return;
+        }
         Sequencer sequencer = midiPlayer.getSequencer();
         if (sequencer != null) {
             sequencer.setTrackMute(DRUM_TRACK,
@@ -143,10 +516,11 @@ public class MainGameState implements GameState {
     public boolean isShooting = false;
     private int shootingCount = 0;
     private boolean coolDown = false;
-    private long coolDownStart = System.currentTimeMillis();
-    private long bulletStart = System.currentTimeMillis();
+    // game times (see GameSession.getTime())
+    private long coolDownStart;
+    private long bulletStart;
 
-    private long previousShot = 0;
+    private long previousShot = -SHOT_DELAY - 1;
     private boolean wasShooting = false;
     private boolean paused = false;
     private void checkInput(long elapsedTime) {
@@ -185,16 +559,15 @@ public class MainGameState implements GameState {
             if(shoot.isPressed()) {
                 boolean canShoot = false;
 
-                if(gas_flag)
+                if(session.isGasActive())
                 {
-                    if (System.currentTimeMillis() - gas_time <= 1000 && gas_count <= 10) {
+                    if (session.getTime() - session.getGasTime() <= 1000 && session.getGasCount() <= 10) {
                         canShoot = false;
                     }
                     else
                     {
                         canShoot = true;
-                        gas_flag = false;
-                        gas_count = 0;
+                        session.setGasActive(false);
                     }
                 }
                 else
@@ -206,7 +579,7 @@ public class MainGameState implements GameState {
 
                 if (canShoot) {
                     // delay
-                    if (System.currentTimeMillis() - previousShot <= 200) {
+                    if (session.getTime() - previousShot <= SHOT_DELAY) {
                         wasShooting = isShooting;
                         isShooting = false;
                     }
@@ -214,7 +587,7 @@ public class MainGameState implements GameState {
                     else {
                         // if cooldown
                         if (coolDown) {
-                            if (System.currentTimeMillis() - coolDownStart >= 1000) {
+                            if (session.getTime() - coolDownStart >= 1000) {
                                 coolDown = false;
                                 shootingCount = 0;
                             }
@@ -224,14 +597,14 @@ public class MainGameState implements GameState {
                             // shooting count at 10
                             if (shootingCount >= 10) {
                                 coolDown = true;
-                                coolDownStart = System.currentTimeMillis();
+                                coolDownStart = session.getTime();
                                 isShooting = false;
                             }
                             //otherwise not at 10
                             else {
                                 shootingCount += 1;
                                 isShooting = true;
-                                previousShot = System.currentTimeMillis();
+                                previousShot = session.getTime();
                             }
                         }
                     }
@@ -256,41 +629,29 @@ public class MainGameState implements GameState {
     public Point getTileCollision(Sprite sprite,
         float newX, float newY)
     {
-        float fromX = Math.min(sprite.getX(), newX);
-        float fromY = Math.min(sprite.getY(), newY);
-        float toX = Math.max(sprite.getX(), newX);
-        float toY = Math.max(sprite.getY(), newY);
-
-        // get the tile locations
-        int fromTileX = TileMapRenderer.pixelsToTiles(fromX);
-        int fromTileY = TileMapRenderer.pixelsToTiles(fromY);
-        int toTileX = TileMapRenderer.pixelsToTiles(
-            toX + sprite.getWidth() - 1);
-        int toTileY = TileMapRenderer.pixelsToTiles(
-            toY + sprite.getHeight() - 1);
-
-        // check each tile for a collision
-        for (int x=fromTileX; x<=toTileX; x++) {
-            for (int y=fromTileY; y<=toTileY; y++) {
-                if (x < 0 || x >= map.getWidth() ||
-                    map.getTile(x, y) != null)
-                {
-                    // collision found, return the tile
-                    pointCache.setLocation(x, y);
-                    return pointCache;
-                }
-            }
-        }
+        return getTileCollision(sprite, newX, newY, pointCache);
+    }
+
 
-        // no collision found
-        return null;
+    /**
+        Gets the tile that a Sprites collides with, storing its
+        location in the specified Point. Only the Sprite's X or Y
+        should be changed, not both. Returns null if no collision
+        is detected.
+    */
+    public Point getTileCollision(Sprite sprite,
+        float newX, float newY, Point result)
+    {
+        return MovementSystem.getTileCollision(map, sprite, newX, newY,
+            result);
     }
 
 
     /**
         Checks if two Sprites collide with one another. Returns
-        false if the two Sprites are the same. Returns false if
-        one of the Sprites is a Creature that is not alive.
+        false if the two Sprites are the same or their collision
+        layers don't interact. Returns false if one of the
+        Sprites is a Creature that is not alive.
     */
     public boolean isCollision(Sprite s1, Sprite s2) {
         // if the Sprites are the same, return false
@@ -298,6 +659,12 @@ public class MainGameState implements GameState {
             return false;
         }
 
+        // if the Sprites' collision layers don't interact,
+        // return false
+        if (!s1.canCollide(s2)) {
+            return false;
+        }
+
         // if one of the Sprites is a dead Creature, return false
         if (s1 instanceof Creature && !((Creature)s1).isAlive()) {
             return false;
@@ -321,23 +688,162 @@ public class MainGameState implements GameState {
 
 
     /**
-        Gets the Sprite that collides with the specified Sprite,
-        or null if no Sprite collides with the specified Sprite.
+        Finds every pair of colliding Sprites in the active window
+        of the map, including the player, and adds the pairs that
+        matter for gameplay to the contact buffer. Creatures are
+        first sorted by the tile column they start in, so only
+        Creatures whose columns overlap are tested against each
+        other, a block at a time (see SpriteBounds). Pickups can
+        only touch the player, so they are tested against the
+        player alone.
     */
-    public Sprite getSpriteCollision(Sprite sprite) {
+    public void findContacts() {
+        contacts.clear();
+
+        // gather the player and the active sprites
+        int numSprites = 0;
+        Sprite player = map.getPlayer();
+        int capacity = 1;
+        for (int c=firstActiveChunk; c<=lastActiveChunk; c++) {
+            capacity += map.getChunkSprites(c).size();
+        }
+        if (broadphase.length < capacity) {
+            broadphase = new Sprite[capacity * 2];
+            sortedSprites = new Sprite[capacity * 2];
+            startColumns = new int[capacity * 2];
+            hits = new int[capacity * 2];
+        }
+        broadphase[numSprites++] = player;
+        for (int c=firstActiveChunk; c<=lastActiveChunk; c++) {
+            SpriteStore chunk = map.getChunkSprites(c);
+            for (int j=0; j<chunk.size(); j++) {
+                Sprite sprite = chunk.getSprite(j);
+                // skip sprites that collide with nothing
+                if (sprite.getCollisionMask() != 0) {
+                    broadphase[numSprites++] = sprite;
+                }
+            }
+        }
+
+        // counting sort by starting tile column
+        int numColumns = map.getWidth();
+        if (columnCounts.length < numColumns + 1) {
+            columnCounts = new int[numColumns + 1];
+        }
+        for (int c=0; c<=numColumns; c++) {
+            columnCounts[c] = 0;
+        }
+        for (int s=0; s<numSprites; s++) {
+            columnCounts[getStartColumn(broadphase[s]) + 1]++;
+        }
+        for (int c=0; c<numColumns; c++) {
+            columnCounts[c + 1] += columnCounts[c];
+        }
+        for (int s=0; s<numSprites; s++) {
+            int column = getStartColumn(broadphase[s]);
+            int index = columnCounts[column]++;
+            sortedSprites[index] = broadphase[s];
+            startColumns[index] = column;
+            broadphase[s] = null;
+        }
+
+        // work out the bounds of every sprite once
+        bounds.ensureCapacity(numSprites);
+        for (int s=0; s<numSprites; s++) {
+            bounds.set(s, sortedSprites[s]);
+        }
+
+        // test each sprite against the block of sprites that
+        // start in a column it covers
+        for (int s1=0; s1<numSprites; s1++) {
+            Sprite sprite = sortedSprites[s1];
+            int endColumn = getEndColumn(sprite);
+            int last = s1 + 1;
+            while (last < numSprites && startColumns[last] <= endColumn) {
+                last++;
+            }
+            bounds.testOverlaps(s1, s1 + 1, last, hits);
+            for (int s2=s1+1; s2<last; s2++) {
+                if (hits[s2 - s1 - 1] != 0) {
+                    addContact(sprite, sortedSprites[s2]);
+                }
+            }
+        }
+        for (int s=0; s<numSprites; s++) {
+            sortedSprites[s] = null;
+        }
+
+        findPickupContacts(player);
+    }
 
-        // run through the list of Sprites
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite otherSprite = (Sprite)i.next();
-            if (isCollision(sprite, otherSprite)) {
-                // collision found, return the Sprite
-                return otherSprite;
+
+    /**
+        Adds a contact for every pickup the player touches.
+    */
+    private void findPickupContacts(Sprite player) {
+        if (!((Creature)player).isAlive()) {
+            return;
+        }
+        int px = Math.round(player.getX());
+        int py = Math.round(player.getY());
+        int right = px + player.getWidth();
+        int bottom = py + player.getHeight();
+
+        // a pickup can hang over from the chunk to the left
+        int firstChunk = Math.max(0, map.getChunk(px) - 1);
+        int lastChunk = map.getChunk(right);
+        for (int c=firstChunk; c<=lastChunk; c++) {
+            SpriteStore pickups = map.getChunkPickups(c);
+            for (int j=0; j<pickups.size(); j++) {
+                Sprite pickup = pickups.getSprite(j);
+                int x = Math.round(pickup.getX());
+                int y = Math.round(pickup.getY());
+                if (px < x + pickup.getWidth() && x < right &&
+                    py < y + pickup.getHeight() && y < bottom &&
+                    player.canCollide(pickup))
+                {
+                    contacts.add(ContactBuffer.PLAYER_POWERUP,
+                        player, pickup);
+                }
             }
         }
+    }
+
+
+    private int getStartColumn(Sprite sprite) {
+        int column = TileMapRenderer.pixelsToTiles(
+            Math.round(sprite.getX()));
+        return Math.max(0, Math.min(column, map.getWidth() - 1));
+    }
+
+
+    private int getEndColumn(Sprite sprite) {
+        int column = TileMapRenderer.pixelsToTiles(
+            Math.round(sprite.getX()) + sprite.getWidth() - 1);
+        return Math.max(0, Math.min(column, map.getWidth() - 1));
+    }
+
+
+    /**
+        Adds a contact between two colliding Sprites to the
+        contact buffer. The type of the contact comes from the
+        Sprites' collision layers.
+    */
+    private void addContact(Sprite s1, Sprite s2) {
+        // keep the sprite on the lower layer first
+        if (s2.getCollisionLayer() < s1.getCollisionLayer()) {
+            Sprite temp = s1;
+            s1 = s2;
+            s2 = temp;
+        }
 
-        // no collision found
-        return null;
+        int layers = s1.getCollisionLayer() | s2.getCollisionLayer();
+        if (layers == (CollisionLayer.PLAYER | CollisionLayer.POWERUP)) {
+            contacts.add(ContactBuffer.PLAYER_POWERUP, s1, s2);
+        }
+        else if (layers == (CollisionLayer.PLAYER | CollisionLayer.ENEMY)) {
+            contacts.add(ContactBuffer.PLAYER_CREATURE, s1, s2);
+        }
     }
 
 
@@ -346,241 +852,417 @@ public class MainGameState implements GameState {
         in the current map.
     */
     public void update(long elapsedTime) {
+        session.advanceTime(elapsedTime);
         Creature player = (Creature)map.getPlayer();
-        Sprite playerBullet = (Sprite) resourceManager.getBullet().clone();
-        Sprite enemyBullets;
 
         // player is dead! start map over
         if (player.getState() == Creature.STATE_DEAD) {
-            map = resourceManager.reloadMap();
-            HEALTH = 20;
+            releaseRemovedSprites();
+            resourceManager.releaseMap(map);
+            map = resourceManager.reloadMap(session);
+            session.setHealth(GameSession.START_HEALTH);
+            if (map != null) {
+                startMap();
+            }
+            return;
+        }
+
+        // the goal was reached last update! go to the next map,
+        // which has been prefetched if the goal was seen coming
+        if (goalReached) {
+            goalReached = false;
+            releaseRemovedSprites();
+            resourceManager.releaseMap(map);
+            map = resourceManager.loadNextMap(session);
+            if (map != null) {
+                startMap();
+            }
             return;
         }
 
         // get keyboard/mouse input
         checkInput(elapsedTime);
 
+        // the star power up wears off
+        if(session.isStarActive()  &&  session.getTime() - session.getStarTime() > 3000){
+            session.setStarActive(false);
+        }
+        else if(session.isStarActive() && session.getStarCount() > 10){
+            session.setStarActive(false);
+        }
+
         // update player
-        updateCreature(player, elapsedTime);
+        boolean playerMoving = player.getVelocityX() * elapsedTime != 0;
+        applyGravity(player, elapsedTime);
+        MovementSystem.moveCreature(map, player, elapsedTime,
+            pointCache);
+        updatePlayerStats(playerMoving);
         player.update(elapsedTime);
 
-        // update bullets
+        // fire bullets
+        ProjectileSystem projectiles = map.getProjectiles();
         if(isShooting)
         {
-            playerBullet.setY(player.getY());
-
-            if(player.direction == "right"){
-                playerBullet.setVelocityX(1.0f);
-                playerBullet.setX(player.getX());
-            }else{
-                playerBullet.setVelocityX(-1.0f);
-                playerBullet.setX(player.getX());
-            }
-            playerBullet.setVelocityY(0);
-            map.addSprite(playerBullet);
-            //soundManager.play(shootingSound);
-        }
-        // update other sprites
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite sprite = (Sprite)i.next();
-            if (sprite instanceof Creature) {
-                Creature creature = (Creature)sprite;
-                if (creature.getState() == Creature.STATE_DEAD) {
-                    if(creature instanceof Grub || creature instanceof Fly)
-                    {
-                        MainGameState.SCORE += 1;
-                        MainGameState.HEALTH += 5;
-
-                    }
-                    i.remove();
-                }
-                else {
-                    enemyBullets = updateCreature(creature, elapsedTime);
-                    if(enemyBullets != null)
-                    {
-                        map.addEnemyBullet(enemyBullets);
-                    }
-                }
+            float velocityX = 1.0f;
+            if(player.direction != "right"){
+                velocityX = -1.0f;
+            }
+            projectiles.add(player.getX(), player.getY(),
+                velocityX, 0, CollisionLayer.BULLET,
+                CollisionLayer.BULLET_MASK);
+            events.publish(GameEventBus.SHOT_FIRED,
+                CollisionLayer.BULLET, player.getX(), player.getY(),
+                velocityX);
+        }
+        // update other sprites in the active window. Sprites
+        // outside of it are dormant and aren't updated at all.
+        updateActiveWindow();
+        movementSystem.setScreenArea(activeLeft, width);
+        if (parallelUpdate && firstActiveChunk < lastActiveChunk) {
+            ForkJoinPool.commonPool().invoke(new IntegrateTask(
+                firstActiveChunk, lastActiveChunk, elapsedTime));
+        }
+        else {
+            for (int c=firstActiveChunk; c<=lastActiveChunk; c++) {
+                integrateChunk(c, elapsedTime);
+            }
+        }
+        for (int c=firstActiveChunk; c<=lastActiveChunk; c++) {
+            mergeChunk(c, elapsedTime);
+        }
+        for (int j=0; j<numMovedSprites; j++) {
+            map.moveSprite(movedSprites[j]);
+            movedSprites[j] = null;
+        }
+        numMovedSprites = 0;
+
+        // move all bullets at once
+        projectiles.update(map, elapsedTime);
+
+        // find and handle all collisions between sprites
+        findContacts();
+        handleContacts();
+        handleProjectileHits();
+
+        // add and remove the sprites queued during this update,
+        // and return the removed ones to their pools, unless a
+        // rewind could put them back
+        map.applyChanges();
+        if (!isRewindable()) {
+            for (int i=0; i<map.getNumRemoved(); i++) {
+                resourceManager.releaseSprite(map.getRemoved(i));
             }
+        }
+        else if (++updatesSinceSnapshot >= snapshotInterval) {
+            takeSnapshot();
+        }
 
-            // normal update
-            sprite.update(elapsedTime);
+        // play the sounds of this update's events
+        if (soundReader != null) {
+            soundReader.poll(soundEffects);
         }
-        map.transfer_buffer();
     }
 
-private long prevMotionLessTime = 0;
-private boolean prevMotionLess = false;
     /**
-        Updates the creature, applying gravity for creatures that
-        aren't flying, and checks collisions.
+        Runs the chunk systems on a chunk: moves and animates its
+        Creatures. Only state that belongs to each Creature is
+        changed, and the map's tiles are only read, so different
+        chunks can be integrated at the same time.
     */
-    private EnemyBullet updateCreature(Creature creature,
-        long elapsedTime)
-    {
-        if(star_flag  &&  System.currentTimeMillis() - star_time > 3000){
-            star_flag = false;
-            star_count = 0;
+    private void integrateChunk(int c, long elapsedTime) {
+        for (int i=0; i<chunkSystems.length; i++) {
+            chunkSystems[i].update(map, c, elapsedTime);
         }
-        else if(star_flag && star_count > 10){
-            star_flag = false;
-            star_count = 0;
+    }
+
+
+    /**
+        Runs the merge systems on a chunk, which apply everything
+        that affects other Sprites or the game (scoring and
+        removing dead Creatures, letting enemies shoot), then
+        re-indexes Creatures that left the chunk. Chunks are
+        always merged one at a time and in order, so the result
+        doesn't depend on how integrateChunk() was run.
+    */
+    private void mergeChunk(int c, long elapsedTime) {
+        for (int i=0; i<mergeSystems.length; i++) {
+            mergeSystems[i].update(map, c, elapsedTime);
         }
 
-        // apply gravity
-        if (!creature.isFlying()) {
-            creature.setVelocityY(creature.getVelocityY() +
-                GRAVITY * elapsedTime);
+        // re-index creatures that left this chunk once the pass
+        // is done, so they aren't updated twice
+        SpriteStore chunk = map.getChunkSprites(c);
+        int[] state = chunk.getState();
+        float[] x = chunk.getX();
+        for (int j=0; j<chunk.size(); j++) {
+            if (state[j] != Creature.STATE_DEAD &&
+                map.getChunk(x[j]) != c)
+            {
+                addMovedSprite(chunk.getSprite(j));
+            }
         }
+    }
+
 
-        // change x
-        float dx = creature.getVelocityX();
-        float oldX = creature.getX();
-        float newX = oldX + dx * elapsedTime;
-        Point tile =
-            getTileCollision(creature, newX, creature.getY());
-        if (tile == null) {
-            creature.setX(newX);
+    /**
+        Integrates a range of chunks, splitting the range in half
+        until each task has a single chunk.
+    */
+    private class IntegrateTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private int firstChunk;
+        private int lastChunk;
+        private long elapsedTime;
+
+        public IntegrateTask(int firstChunk, int lastChunk,
+            long elapsedTime)
+        {
+            this.firstChunk = firstChunk;
+            this.lastChunk = lastChunk;
+            this.elapsedTime = elapsedTime;
         }
-        else {
-            // line up with the tile boundary
-            if (dx > 0) {
-                creature.setX(
-                    TileMapRenderer.tilesToPixels(tile.x) -
-                    creature.getWidth());
+
+        protected void compute() {
+            if (firstChunk == lastChunk) {
+                integrateChunk(firstChunk, elapsedTime);
             }
-            else if (dx < 0) {
-                creature.setX(
-                    TileMapRenderer.tilesToPixels(tile.x + 1));
+            else {
+                int middle = (firstChunk + lastChunk) / 2;
+                invokeAll(
+                    new IntegrateTask(firstChunk, middle, elapsedTime),
+                    new IntegrateTask(middle + 1, lastChunk,
+                        elapsedTime));
             }
-            creature.collideHorizontal();
+        }
+    }
 
-            if (creature instanceof Bullet || creature instanceof EnemyBullet) {
-                try{
 
-                    creature.setY(1000);
-                    creature.setX(1000);
-                    creature.setVelocityX(0);
-                    creature.setVelocityY(0);
+    /**
+        Sets whether Sprites in different chunks are integrated
+        in parallel. Both modes give the same results, because
+        everything that crosses between Sprites is applied
+        serially afterwards (see ParallelUpdateCheck).
+    */
+    public void setParallelUpdate(boolean parallelUpdate) {
+        this.parallelUpdate = parallelUpdate;
+    }
 
-                }
-                catch(Exception e){
-                    System.out.println("Caught error");
+
+    /**
+        Checks if Sprites in different chunks are integrated in
+        parallel.
+    */
+    public boolean isParallelUpdate() {
+        return parallelUpdate;
+    }
+
+
+    /**
+        Finds the chunks of the map that are simulated this
+        update: the chunks on screen plus a margin of one chunk
+        on each side. If the map is streamed, loads the chunks
+        around them.
+    */
+    private void updateActiveWindow() {
+        activeLeft = -TileMapRenderer.getOffsetX(map, width);
+        int margin = TileMapRenderer.tilesToPixels(TileMap.CHUNK_TILES);
+        int oldFirst = firstActiveChunk;
+        int oldLast = lastActiveChunk;
+        firstActiveChunk = map.getChunk(activeLeft - margin);
+        lastActiveChunk = map.getChunk(activeLeft + width + margin);
+        if (map.getStreamer() != null) {
+            map.getStreamer().update(firstActiveChunk,
+                lastActiveChunk);
+        }
+        if (firstActiveChunk != oldFirst ||
+            lastActiveChunk != oldLast)
+        {
+            checkGoalInView();
+        }
+    }
+
+
+    /**
+        Starts loading the next map in the background once a
+        goal is in the active window, so reaching it doesn't
+        pause the game.
+    */
+    private void checkGoalInView() {
+        if (resourceManager.isPrefetching(session)) {
+            return;
+        }
+        for (int c=firstActiveChunk; c<=lastActiveChunk; c++) {
+            SpriteStore pickups = map.getChunkPickups(c);
+            for (int j=0; j<pickups.size(); j++) {
+                if (pickups.getSprite(j) instanceof PowerUp.Goal) {
+                    resourceManager.prefetchNextMap(session);
+                    return;
                 }
             }
         }
-        if (creature instanceof Player) {
-            checkPlayerCollision((Player)creature, false);
+    }
+
+
+    private void addMovedSprite(Sprite sprite) {
+        if (numMovedSprites == movedSprites.length) {
+            Sprite[] newSprites = new Sprite[numMovedSprites * 2];
+            System.arraycopy(movedSprites, 0, newSprites, 0,
+                numMovedSprites);
+            movedSprites = newSprites;
         }
+        movedSprites[numMovedSprites++] = sprite;
+    }
 
-        // change y
-        float dy = creature.getVelocityY();
-        float oldY = creature.getY();
-        float newY = oldY + dy * elapsedTime;
-        tile = getTileCollision(creature, creature.getX(), newY);
-        if (tile == null) {
-            creature.setY(newY);
+private long prevMotionLessTime = 0;
+private boolean prevMotionLess = false;
+    /**
+        Applies gravity to the creature, if it isn't flying.
+    */
+    private void applyGravity(Creature creature, long elapsedTime) {
+        if (!creature.isFlying()) {
+            creature.setVelocityY(creature.getVelocityY() +
+                GRAVITY * elapsedTime);
         }
-        else {
-            // line up with the tile boundary
-            if (dy > 0) {
-                creature.setY(
-                    TileMapRenderer.tilesToPixels(tile.y) -
-                    creature.getHeight());
+    }
+
+
+    /**
+        Updates the power up counters and health of the player
+        after it moved (or tried to move) sideways, or stood
+        still.
+    */
+    private void updatePlayerStats(boolean moving) {
+        if(moving)
+        {
+            session.countMove();
+            prevMotionLess = false;
+            session.addHealth(0.05f);
+        }
+        else
+        {
+            if (prevMotionLess) {
+                if (session.getTime() - prevMotionLessTime >= 1000) {
+                    session.addHealth(1);
+                    prevMotionLessTime = session.getTime();
+                } else if (session.getTime() - prevMotionLessTime < 1000) {
+                    // do nothing
+                }
             }
-            else if (dy < 0) {
-                creature.setY(
-                    TileMapRenderer.tilesToPixels(tile.y + 1));
+            else{
+                prevMotionLess = true;
+                prevMotionLessTime  = session.getTime();
             }
-            creature.collideVertical();
         }
-        if (creature instanceof Player) {
-            boolean canKill = (oldY < creature.getY());
-            checkPlayerCollision((Player)creature, canKill);
-            boolean movement = false;
+        if(session.getHealth() > 40) session.setHealth(40);
+    }
 
-            if(newX != oldX)
-            {
-                star_count++;
-                gas_count++;
-                prevMotionLess = false;
-                HEALTH += 0.05;
-            }
-            else if(newX == oldX) // || newY == oldY))
-            {
-                if (prevMotionLess) {
-                    if (System.currentTimeMillis() - prevMotionLessTime >= 1000) {
-                        HEALTH += 1;
-                        prevMotionLessTime = System.currentTimeMillis();
-                    } else if (System.currentTimeMillis() - prevMotionLessTime < 1000) {
-                        // do nothing
-                    }
-                }
-                else{
-                    prevMotionLess = true;
-                    prevMotionLessTime  = System.currentTimeMillis();
-                }
+
+    /**
+        Applies the gameplay effects of every contact found by
+        the last collision pass.
+    */
+    public void handleContacts() {
+        for (int i=0; i<contacts.size(); i++) {
+            Sprite s1 = contacts.getFirst(i);
+            Sprite s2 = contacts.getSecond(i);
+            switch (contacts.getType(i)) {
+                case ContactBuffer.PLAYER_POWERUP:
+                case ContactBuffer.PLAYER_CREATURE:
+                    checkPlayerCollision((Player)s1, s2,
+                        contacts.getType(i));
+                    break;
             }
-            if(HEALTH > 40) HEALTH = 40;
         }
+    }
 
-        // check for bullet collision with creatures
-        Sprite collisionSprite = getSpriteCollision(creature);
-        if (collisionSprite instanceof Bullet) {
-            if(creature.isAlive() && !(creature instanceof Player) & !(creature instanceof Bullet))
-            {
-                creature.setState(Creature.STATE_DYING);
-
-            }
-        }
-
-        if(creature instanceof Grub){
-            if(creature.getVelocityX() != 0f){
-                if((creature.BULLETCOUNT > 0 &&
-                        System.currentTimeMillis() - creature.LASTBUGSHOT > 800) ||
-                        (creature.BULLETCOUNT == 0 &&
-                                ((map.getPlayer().getVelocityX()==0 && System.currentTimeMillis() - creature.LASTBUGSHOT > 2000) ||
-                                        (map.getPlayer().getVelocityX()!=0 && System.currentTimeMillis() - creature.LASTBUGSHOT > 500)))){
-                    EnemyBullet bullet =
-                            (EnemyBullet) resourceManager.getEnemyBullet().clone();
-                    if(creature.direction != "left"){
-                        bullet.setX(creature.getX() + 70);
-                        bullet.setY(creature.getY() - 20);
-                        bullet.setVelocityX(0.7f);
-                    }else{
-                        bullet.setX(creature.getX() - 70);
-                        bullet.setY(creature.getY() - 20);
-                        bullet.setVelocityX(-0.7f);
+
+    /**
+        Applies every bullet hit of the last update. Player
+        bullets shoot down enemy bullets and kill the enemies
+        they pass through, and enemy bullets hurt the player.
+        Bullets that leave the active window are removed.
+    */
+    private void handleProjectileHits() {
+        ProjectileSystem projectiles = map.getProjectiles();
+        projectiles.collideBullets();
+
+        Player player = (Player)map.getPlayer();
+        for (int i=0; i<projectiles.size(); i++) {
+            if (projectiles.isDead(i)) {
+                continue;
+            }
+
+            // bullets don't go dormant
+            int chunk = map.getChunk(projectiles.getX(i));
+            if (chunk < firstActiveChunk || chunk > lastActiveChunk) {
+                projectiles.kill(i);
+                continue;
+            }
+
+            if (player.isAlive() && projectiles.isHit(i, player)) {
+                checkPlayerHit(player, projectiles, i);
+            }
+
+            // look in the chunks the bullet passed through (a
+            // sprite can hang over from the chunk to the left)
+            int firstChunk = Math.max(0,
+                map.getChunk(projectiles.getSweepLeft(i)) - 1);
+            int lastChunk = map.getChunk(projectiles.getSweepRight(i));
+            for (int c=firstChunk; c<=lastChunk; c++) {
+                SpriteStore store = map.getChunkSprites(c);
+                for (int j=0; j<store.size(); j++) {
+                    Creature creature = (Creature)store.getSprite(j);
+                    if (creature.isAlive() &&
+                        projectiles.isHit(i, creature))
+                    {
+                        creature.setState(Creature.STATE_DYING);
                     }
-                    creature.LASTBUGSHOT = System.currentTimeMillis();
-                    creature.BULLETCOUNT++;
-                    return bullet;
                 }
-            }else{
-                creature.LASTBUGSHOT = System.currentTimeMillis();
             }
         }
+        projectiles.removeDead();
+    }
+
 
-        return null;
+    /**
+        Handles an enemy bullet hitting the player. The player is
+        hurt, unless a Star is active, and the bullet is used up.
+    */
+    private void checkPlayerHit(Player player,
+        ProjectileSystem projectiles, int index)
+    {
+        if (session.isStarActive()) {
+            return;
+        }
+        if(session.getHealth() <= 5)
+        {
+            damagePlayer(player, session.getHealth(), true);
+            session.setScore(0);
+            player.setState(Creature.STATE_DYING);
+        }
+        else
+        {
+            damagePlayer(player, 5, false);
+            projectiles.kill(index);
+        }
     }
 
 
     /**
-        Checks for Player collision with other Sprites. If
-        canKill is true, collisions with Creatures will kill
-        them.
+        Handles a Player contact with another Sprite. Touching a
+        PowerUp acquires it, and touching an enemy hurts the
+        player unless a Star is active.
     */
     public void checkPlayerCollision(Player player,
-        boolean canKill)
+        Sprite collisionSprite, int contactType)
     {
         if (!player.isAlive()) {
             return;
         }
 
-        // check for player collision with other sprites
-        Sprite collisionSprite = getSpriteCollision(player);
-        if (collisionSprite instanceof PowerUp) {
+        if (contactType == ContactBuffer.PLAYER_POWERUP) {
             if(acquirePowerUp((PowerUp)collisionSprite))
             {
                 if (player.getVelocityY() > 0) {
@@ -588,39 +1270,34 @@ private boolean prevMotionLess = false;
                 }
             }
         }
-        else if (collisionSprite instanceof Creature && !star_flag) {
-            if(collisionSprite instanceof Bullet) {
-                return;
-            }
-
-            if(collisionSprite instanceof EnemyBullet)
-            {
-
-                if(HEALTH <= 5)
-                {
-                    HEALTH = 0;
-                    SCORE = 0;
-                    player.setState(Creature.STATE_DYING);
-                }
-                else
-                {
-                    HEALTH -= 5;
-                    map.removeSprite(collisionSprite);
-                }
-                return;
-            }
-
-            HEALTH = 0;
-            SCORE = 0;
+        else if (!session.isStarActive() &&
+            ((Creature)collisionSprite).isAlive())
+        {
+            damagePlayer(player, session.getHealth(), true);
+            session.setScore(0);
             player.setState(Creature.STATE_DYING);
         }
 
     }
 
 
+    /**
+        Takes health from the player and publishes a
+        PLAYER_DAMAGED event.
+    */
+    private void damagePlayer(Player player, float amount,
+        boolean fatal)
+    {
+        session.addHealth(-amount);
+        events.publish(GameEventBus.PLAYER_DAMAGED, fatal?1:0,
+            player.getX(), player.getY(), amount);
+    }
+
+
     /**
         Gives the player the speicifed power up and removes it
-        from the map.
+        from the map. A POWERUP_ACQUIRED event is published, and
+        sounds are left to the event's readers.
     */
     public boolean acquirePowerUp(PowerUp powerUp) {
         // remove it from the map
@@ -628,42 +1305,84 @@ private boolean prevMotionLess = false;
 
         if (powerUp instanceof PowerUp.Star) {
             // do something here, like give the player points
-            soundManager.play(prizeSound);
-            star_flag = true;
-            star_time = System.currentTimeMillis();
-            star_count = 0;
+            publishPowerUp(GameEventBus.POWERUP_STAR, powerUp);
+            session.setStarActive(true);
         }
         else if (powerUp instanceof PowerUp.Music) {
             // change the music
-            soundManager.play(prizeSound);
-            toggleDrumPlayback();
+            publishPowerUp(GameEventBus.POWERUP_MUSIC, powerUp);
         }
         else if (powerUp instanceof PowerUp.Goal) {
             // advance to next map
-//            soundManager.play(prizeSound);
-            midiPlayer.play(prize, true);
-//            soundManager.play(prizeSound, new EchoFilter(2000, .7f), false);
-//            map = resourceManager.loadNextMap();
-            HEALTH += 5;
+            publishPowerUp(GameEventBus.POWERUP_GOAL, powerUp);
+            goalReached = true;
+            session.addHealth(5);
         }
         else if(powerUp instanceof PowerUp.Gas) {
-                gas_time = System.currentTimeMillis();
-            gas_flag = true;
-            gas_count = 0;
+            session.setGasActive(true);
+            publishPowerUp(GameEventBus.POWERUP_GAS, powerUp);
              return true;
         }
         else if(powerUp instanceof PowerUp.Explode) {
             if(((PowerUp.Explode) powerUp).EXPLOSIVE == true)
             {
-                HEALTH -= 10;
+                publishPowerUp(GameEventBus.POWERUP_EXPLODE, powerUp);
+                damagePlayer((Player)map.getPlayer(), 10, false);
                 ((PowerUp.Explode) powerUp).EXPLOSIVE = false;
             }
             return true;
         }
 
 
-        map.removeSprite(powerUp);
+        map.queueRemove(powerUp);
         return false;
     }
 
+
+    private void publishPowerUp(int kind, PowerUp powerUp) {
+        events.publish(GameEventBus.POWERUP_ACQUIRED, kind,
+            powerUp.getX(), powerUp.getY(), 0);
+    }
+
+
+    /**
+        Plays the sounds of gameplay events.
+    */
+    private class SoundEffects implements GameEventHandler {
+
+        public void handleEvent(int type, int kind, float x, float y,
+            float amount)
+        {
+            if (type != GameEventBus.POWERUP_ACQUIRED) {
+                return;
+            }
+            switch (kind) {
+                case GameEventBus.POWERUP_STAR:
+                    playSound(prizeSound);
+                    break;
+                case GameEventBus.POWERUP_MUSIC:
+                    playSound(prizeSound);
+                    toggleDrumPlayback();
+                    break;
+                case GameEventBus.POWERUP_GOAL:
+//                    soundManager.play(prizeSound, new EchoFilter(2000, .7f), false);
+                    if (midiPlayer != null) {
+                        midiPlayer.play(prize, true);
+                    }
+                    break;
+            }
+        }
+
+
+        /**
+            Plays a sound, unless the game is running without
+            sound.
+        */
+        private void playSound(Sound sound) {
+            if (soundManager != null) {
+                soundManager.play(sound);
+            }
+        }
+    }
+
 }
\ No newline at end of file
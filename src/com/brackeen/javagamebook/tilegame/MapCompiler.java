@@ -0,0 +1,168 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+    The MapCompiler class compiles text map files into binary map
+    files, which TileGameResourceManager loads without parsing.
+
+    <p>A binary map file holds, in big-endian order:
+    <ul>
+    <li>A header of HEADER_SIZE bytes: the int MAGIC, the int
+    VERSION, and the width, height and number of spawns of the
+    map, as ints.
+    <li>The tile IDs, as shorts, row by row. The tile for map
+    character 'A' has ID 1, 'B' has ID 2, and so on, and 0 is
+    empty.
+    <li>The spawn table: for each character that isn't a space,
+    its tile x and y as ints and the character as a char. The
+    table is sorted by column, then row, so the spawns of a
+    chunk of columns can be found with a binary search (see
+    ChunkStreamer).
+    </ul>
+
+    <p>Letters are written both as tiles and as spawns, since the
+    compiler doesn't know how many tile images there are. The
+    loader uses a letter as a tile if there is a tile image for
+    it, and as a Sprite otherwise, like the text loader.
+
+    <p>Run it with a directory of text maps and a directory to
+    write the binary maps to. Each mapN.txt is compiled into a
+    mapN.map.
+*/
+public class MapCompiler {
+
+    /**
+        The first four bytes of a binary map file ("TMAP").
+    */
+    public static final int MAGIC = 0x544D4150;
+
+    /**
+        The version of the binary map format. Version 1 wrote
+        spawn coordinates as shorts, which wrapped on maps more
+        than 32767 tiles wide.
+    */
+    public static final int VERSION = 2;
+
+    /**
+        The size of the header, in bytes.
+    */
+    public static final int HEADER_SIZE = 20;
+
+    /**
+        The size of each entry in the spawn table, in bytes.
+    */
+    public static final int SPAWN_SIZE = 10;
+
+
+    /**
+        Compiles a text map into a binary map.
+    */
+    public static byte[] compile(Reader in) throws IOException {
+        ArrayList lines = new ArrayList();
+        int width = 0;
+        BufferedReader reader = new BufferedReader(in);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            // add every line except for comments
+            if (!line.startsWith("#")) {
+                lines.add(line);
+                width = Math.max(width, line.length());
+            }
+        }
+        int height = lines.size();
+
+        // count the spawns
+        int numSpawns = 0;
+        for (int y=0; y<height; y++) {
+            line = (String)lines.get(y);
+            for (int x=0; x<line.length(); x++) {
+                if (isSpawn(line.charAt(x))) {
+                    numSpawns++;
+                }
+            }
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE +
+            width * height * 2 + numSpawns * SPAWN_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.putInt(numSpawns);
+        for (int y=0; y<height; y++) {
+            line = (String)lines.get(y);
+            for (int x=0; x<width; x++) {
+                char ch = (x < line.length())?line.charAt(x):' ';
+                if (ch >= 'A' && ch <= 'Z') {
+                    buffer.putShort((short)(ch - 'A' + 1));
+                }
+                else {
+                    buffer.putShort((short)0);
+                }
+            }
+        }
+        for (int x=0; x<width; x++) {
+            for (int y=0; y<height; y++) {
+                line = (String)lines.get(y);
+                char ch = (x < line.length())?line.charAt(x):' ';
+                if (isSpawn(ch)) {
+                    buffer.putInt(x);
+                    buffer.putInt(y);
+                    buffer.putChar(ch);
+                }
+            }
+        }
+        return buffer.array();
+    }
+
+
+    /**
+        Checks if a map character may stand for a Sprite. Every
+        character that isn't a space is kept, and the loader skips
+        the ones it doesn't know.
+    */
+    private static boolean isSpawn(char ch) {
+        return ch != ' ';
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println(
+                "Usage: MapCompiler <text map dir> <binary map dir>");
+            System.exit(1);
+        }
+        File srcDir = new File(args[0]);
+        File destDir = new File(args[1]);
+        destDir.mkdirs();
+        File[] files = srcDir.listFiles();
+        for (int i=0; i<files.length; i++) {
+            String name = files[i].getName();
+            if (!name.endsWith(".txt")) {
+                continue;
+            }
+            Reader in = new FileReader(files[i]);
+            byte[] data;
+            try {
+                data = compile(in);
+            }
+            finally {
+                in.close();
+            }
+            File dest = new File(destDir,
+                name.substring(0, name.length() - 4) + ".map");
+            OutputStream out = new FileOutputStream(dest);
+            try {
+                out.write(data);
+            }
+            finally {
+                out.close();
+            }
+            System.out.println(name + " -> " + dest.getName() + " (" +
+                data.length + " bytes)");
+        }
+    }
+}
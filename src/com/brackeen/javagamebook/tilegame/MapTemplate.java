@@ -0,0 +1,113 @@
+package com.brackeen.javagamebook.tilegame;
+
+/**
+    The MapTemplate class holds a parsed map file: its tile IDs
+    and the Sprites it places. A template never changes after it
+    is created, so it can be kept and shared by any number of
+    TileMaps, on any thread. TileGameResourceManager keeps one
+    template per map, so a map is only parsed once, and starting
+    a map over is just a matter of placing its Sprites again.
+
+    <p>The TileMaps created from a template share its tile IDs,
+    and only copy a chunk's IDs when a tile in it is changed.
+*/
+public class MapTemplate {
+
+    private int width;
+    private int height;
+    private short[][] tiles;
+    // tile x, tile y and map character of each spawn
+    private int[] spawns;
+    private int numSpawns;
+    private int[] counts;
+
+    /**
+        Creates a new MapTemplate with the tile IDs of the
+        specified TileMap, which must be fully loaded and must
+        not be changed afterwards, and the specified Sprite
+        spawns, as tile x, tile y and map character. Only map
+        characters that stand for Sprites should be given.
+    */
+    public MapTemplate(TileMap map, int[] spawns, int numSpawns) {
+        width = map.getWidth();
+        height = map.getHeight();
+        tiles = new short[map.getNumChunks()][];
+        for (int i=0; i<tiles.length; i++) {
+            tiles[i] = map.getChunkTiles(i);
+        }
+        this.spawns = new int[numSpawns * 3];
+        System.arraycopy(spawns, 0, this.spawns, 0, numSpawns * 3);
+        this.numSpawns = numSpawns;
+
+        counts = new int[128];
+        for (int i=0; i<numSpawns; i++) {
+            counts[getSpawnChar(i)]++;
+        }
+    }
+
+
+    /**
+        Gets the width of the map, in tiles.
+    */
+    public int getWidth() {
+        return width;
+    }
+
+
+    /**
+        Gets the height of the map, in tiles.
+    */
+    public int getHeight() {
+        return height;
+    }
+
+
+    /**
+        Gets the tile IDs of a chunk (see TileMap). The array
+        must not be changed.
+    */
+    public short[] getChunkTiles(int chunk) {
+        return tiles[chunk];
+    }
+
+
+    /**
+        Gets the number of Sprites the map places.
+    */
+    public int getNumSpawns() {
+        return numSpawns;
+    }
+
+
+    /**
+        Gets the tile x of a spawn.
+    */
+    public int getSpawnX(int index) {
+        return spawns[index * 3];
+    }
+
+
+    /**
+        Gets the tile y of a spawn.
+    */
+    public int getSpawnY(int index) {
+        return spawns[index * 3 + 1];
+    }
+
+
+    /**
+        Gets the map character of a spawn.
+    */
+    public char getSpawnChar(int index) {
+        return (char)spawns[index * 3 + 2];
+    }
+
+
+    /**
+        Gets the number of spawns with the specified map
+        character.
+    */
+    public int getSpawnCount(char ch) {
+        return (ch < counts.length)?counts[ch]:0;
+    }
+}
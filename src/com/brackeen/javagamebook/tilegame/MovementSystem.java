@@ -0,0 +1,160 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.Point;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.graphics.SpriteStore;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+
+/**
+    The MovementSystem wakes up the Creatures that come on screen
+    and moves every Creature that isn't dead, stopping it at the
+    tiles of the map.
+*/
+public class MovementSystem implements GameSystem {
+
+    private int screenLeft;
+    private int screenWidth;
+
+    // a tile location for each thread that runs this system
+    private ThreadLocal tileCache = new ThreadLocal() {
+        protected Object initialValue() {
+            return new Point();
+        }
+    };
+
+    /**
+        Sets the part of the map that is on screen, in pixels.
+        Creatures wake up when they are in it.
+    */
+    public void setScreenArea(int screenLeft, int screenWidth) {
+        this.screenLeft = screenLeft;
+        this.screenWidth = screenWidth;
+    }
+
+
+    public void update(TileMap map, int chunk, long elapsedTime) {
+        Point cache = (Point)tileCache.get();
+        SpriteStore store = map.getChunkSprites(chunk);
+        int[] state = store.getState();
+        float[] x = store.getX();
+        for (int j=0; j<store.size(); j++) {
+            if (state[j] == Creature.STATE_DEAD) {
+                continue;
+            }
+            Creature creature = (Creature)store.getSprite(j);
+
+            // wake up the creature when it's on screen
+            if (x[j] >= screenLeft &&
+                x[j] < screenLeft + screenWidth)
+            {
+                creature.wakeUp();
+            }
+            moveCreature(map, creature, elapsedTime, cache);
+        }
+    }
+
+
+    /**
+        Moves the creature and checks tile collisions. The tile
+        location of a collision is stored in tileCache.
+    */
+    public static void moveCreature(TileMap map, Creature creature,
+        long elapsedTime, Point tileCache)
+    {
+        // change x
+        float dx = creature.getVelocityX();
+        float oldX = creature.getX();
+        float newX = oldX + dx * elapsedTime;
+        Point tile = getTileCollision(map, creature, newX,
+            creature.getY(), tileCache);
+        if (tile == null) {
+            creature.setX(newX);
+        }
+        else {
+            // line up with the tile boundary
+            if (dx > 0) {
+                creature.setX(
+                    TileMapRenderer.tilesToPixels(tile.x) -
+                    creature.getWidth());
+            }
+            else if (dx < 0) {
+                creature.setX(
+                    TileMapRenderer.tilesToPixels(tile.x + 1));
+            }
+            creature.collideHorizontal();
+        }
+
+        // change y
+        float dy = creature.getVelocityY();
+        float oldY = creature.getY();
+        float newY = oldY + dy * elapsedTime;
+        tile = getTileCollision(map, creature, creature.getX(), newY,
+            tileCache);
+        if (tile == null) {
+            creature.setY(newY);
+        }
+        else {
+            // line up with the tile boundary
+            if (dy > 0) {
+                creature.setY(
+                    TileMapRenderer.tilesToPixels(tile.y) -
+                    creature.getHeight());
+            }
+            else if (dy < 0) {
+                creature.setY(
+                    TileMapRenderer.tilesToPixels(tile.y + 1));
+            }
+            creature.collideVertical();
+        }
+    }
+
+
+    /**
+        Gets the tile of a map that a Sprite collides with when
+        it moves to the specified position, and stores its
+        location in the specified Point. Only the Sprite's X or Y
+        should be changed, not both. Returns null if no collision
+        is detected.
+    */
+    public static Point getTileCollision(TileMap map, Sprite sprite,
+        float newX, float newY, Point result)
+    {
+        float fromX = Math.min(sprite.getX(), newX);
+        float fromY = Math.min(sprite.getY(), newY);
+        float toX = Math.max(sprite.getX(), newX);
+        float toY = Math.max(sprite.getY(), newY);
+
+        // get the tile locations
+        int fromTileX = TileMapRenderer.pixelsToTiles(fromX);
+        int fromTileY = TileMapRenderer.pixelsToTiles(fromY);
+        int toTileX = TileMapRenderer.pixelsToTiles(
+            toX + sprite.getWidth() - 1);
+        int toTileY = TileMapRenderer.pixelsToTiles(
+            toY + sprite.getHeight() - 1);
+
+        // check each tile for a collision, starting from the
+        // side the sprite is moving away from so the nearest
+        // tile is found first on long (fast) moves
+        int stepX = (newX < sprite.getX())?-1:1;
+        int stepY = (newY < sprite.getY())?-1:1;
+        int startX = (stepX > 0)?fromTileX:toTileX;
+        int startY = (stepY > 0)?fromTileY:toTileY;
+        int countX = toTileX - fromTileX + 1;
+        int countY = toTileY - fromTileY + 1;
+        for (int i=0, x=startX; i<countX; i++, x+=stepX) {
+            for (int j=0, y=startY; j<countY; j++, y+=stepY) {
+                if (x < 0 || x >= map.getWidth() ||
+                    map.isSolid(x, y))
+                {
+                    // collision found, return the tile
+                    result.setLocation(x, y);
+                    return result;
+                }
+            }
+        }
+
+        // no collision found
+        return null;
+    }
+}
@@ -0,0 +1,147 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.graphics.SpriteStore;
+
+/**
+    The ParallelUpdateCheck class checks that the parallel update
+    mode of MainGameState gives the same results as the serial
+    one. Two games play the same map in lockstep, one updated
+    serially and one in parallel, with the same actions pressed.
+    After every tick, the arrays of each chunk's SpriteStore, the
+    bullets, the player, the health and the score of both games
+    are compared. Games are timed by their game clock, so the
+    player and enemies shoot as often as in a game played at
+    full speed, and the number of shots is printed.
+*/
+public class ParallelUpdateCheck {
+
+    /**
+        Runs the check and prints the first tick where the games
+        differ, if any. Arguments: number of ticks, map name.
+        Exits with status 1 if the games differ.
+    */
+    public static void main(String[] args) {
+        int ticks = (args.length > 0)?Integer.parseInt(args[0]):2000;
+        String mapName = (args.length > 1)?args[1]:"1";
+
+        System.setProperty("java.awt.headless", "true");
+        // one thread, so the two games take turns on each tick
+        SimulationHost host = new SimulationHost(1);
+        MainGameState serial = host.addSession(
+            new GameSession(mapName));
+        MainGameState parallel = host.addSession(
+            new GameSession(mapName));
+        serial.setParallelUpdate(false);
+        parallel.setParallelUpdate(true);
+
+        GameEventBus.Reader reader = serial.getEvents().addReader();
+        ShotCounter shots = new ShotCounter();
+
+        int failedTick = -1;
+        for (int i=0; i<ticks && failedTick < 0; i++) {
+            // run right, jumping now and then, and hold shoot
+            // most of the time
+            boolean jump = (i % 40) < 5;
+            boolean shoot = (i % 200) < 150;
+            serial.setActions(false, true, jump, false, shoot);
+            parallel.setActions(false, true, jump, false, shoot);
+            host.run(1);
+            if (!isSame(serial, parallel)) {
+                failedTick = i;
+            }
+            reader.poll(shots);
+        }
+        host.close();
+
+        if (failedTick >= 0) {
+            System.out.println("Serial and parallel updates differ " +
+                "at tick " + failedTick);
+            System.exit(1);
+        }
+        System.out.println("Serial and parallel updates are the " +
+            "same for " + ticks + " ticks (" + shots.playerShots +
+            " player shots, " + shots.enemyShots + " enemy shots)");
+    }
+
+
+    private static boolean isSame(MainGameState a, MainGameState b) {
+        TileMap mapA = a.getMap();
+        TileMap mapB = b.getMap();
+        if (mapA.getNumChunks() != mapB.getNumChunks() ||
+            a.getSession().getScore() != b.getSession().getScore() ||
+            a.getSession().getHealth() != b.getSession().getHealth())
+        {
+            return false;
+        }
+        ProjectileSystem bulletsA = mapA.getProjectiles();
+        ProjectileSystem bulletsB = mapB.getProjectiles();
+        if (bulletsA.size() != bulletsB.size()) {
+            return false;
+        }
+        for (int i=0; i<bulletsA.size(); i++) {
+            if (bulletsA.getX(i) != bulletsB.getX(i) ||
+                bulletsA.getY(i) != bulletsB.getY(i))
+            {
+                return false;
+            }
+        }
+        Sprite playerA = mapA.getPlayer();
+        Sprite playerB = mapB.getPlayer();
+        if (playerA.getX() != playerB.getX() ||
+            playerA.getY() != playerB.getY())
+        {
+            return false;
+        }
+        for (int c=0; c<mapA.getNumChunks(); c++) {
+            if (!isSame(mapA.getChunkSprites(c),
+                mapB.getChunkSprites(c)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static boolean isSame(SpriteStore a, SpriteStore b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i=0; i<a.size(); i++) {
+            if (a.getX()[i] != b.getX()[i] ||
+                a.getY()[i] != b.getY()[i] ||
+                a.getVelocityX()[i] != b.getVelocityX()[i] ||
+                a.getVelocityY()[i] != b.getVelocityY()[i] ||
+                a.getState()[i] != b.getState()[i] ||
+                a.getType()[i] != b.getType()[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+        Counts the bullets fired by the player and by enemies.
+    */
+    private static class ShotCounter implements GameEventHandler {
+
+        private int playerShots;
+        private int enemyShots;
+
+        public void handleEvent(int type, int kind, float x, float y,
+            float amount)
+        {
+            if (type == GameEventBus.SHOT_FIRED) {
+                if (kind == CollisionLayer.ENEMY_BULLET) {
+                    enemyShots++;
+                }
+                else {
+                    playerShots++;
+                }
+            }
+        }
+    }
+}
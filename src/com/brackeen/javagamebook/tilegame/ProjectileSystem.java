@@ -0,0 +1,489 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.nio.ByteBuffer;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    The ProjectileSystem class moves, collides and draws every
+    bullet in a map. Bullets aren't Sprites: each one is an entry
+    in a set of parallel arrays (position, velocity, collision
+    layer and age), and all bullets share one Image, so thousands
+    of them can be updated in one loop.
+
+    <p>A bullet's collision layer tells who fired it
+    (CollisionLayer.BULLET for the player, CollisionLayer.
+    ENEMY_BULLET for enemies) and which Sprites it can hit.
+
+    <p>Entries are packed: removing a bullet moves the last entry
+    into its place.
+*/
+public class ProjectileSystem {
+
+    /**
+        How long a bullet flies, in milliseconds, before it is
+        removed.
+    */
+    public static final long LIFETIME = 3000;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    // bytes written by writeState() for each bullet
+    private static final int BULLET_STATE_SIZE = 41;
+
+    private Image image;
+    private int width;
+    private int height;
+
+    private float[] x;
+    private float[] y;
+    private float[] dx;
+    private float[] dy;
+    private float[] sweepLeft;
+    private float[] sweepRight;
+    private int[] layer;
+    private int[] mask;
+    private long[] age;
+    private boolean[] dead;
+    private int size;
+
+    /**
+        Creates a new, empty ProjectileSystem whose bullets are
+        drawn with the specified Image. The size of the Image is
+        the size of every bullet.
+    */
+    public ProjectileSystem(Image image) {
+        this.image = image;
+        width = image.getWidth(null);
+        height = image.getHeight(null);
+        x = new float[INITIAL_CAPACITY];
+        y = new float[INITIAL_CAPACITY];
+        dx = new float[INITIAL_CAPACITY];
+        dy = new float[INITIAL_CAPACITY];
+        sweepLeft = new float[INITIAL_CAPACITY];
+        sweepRight = new float[INITIAL_CAPACITY];
+        layer = new int[INITIAL_CAPACITY];
+        mask = new int[INITIAL_CAPACITY];
+        age = new long[INITIAL_CAPACITY];
+        dead = new boolean[INITIAL_CAPACITY];
+    }
+
+
+    /**
+        Gets the number of bullets.
+    */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+        Gets the width of every bullet.
+    */
+    public int getWidth() {
+        return width;
+    }
+
+
+    /**
+        Gets the height of every bullet.
+    */
+    public int getHeight() {
+        return height;
+    }
+
+
+    /**
+        Gets the x position of a bullet.
+    */
+    public float getX(int index) {
+        return x[index];
+    }
+
+
+    /**
+        Gets the y position of a bullet.
+    */
+    public float getY(int index) {
+        return y[index];
+    }
+
+
+    /**
+        Gets the left edge of the path a bullet covered in the
+        last update.
+    */
+    public float getSweepLeft(int index) {
+        return sweepLeft[index];
+    }
+
+
+    /**
+        Gets the right edge of the path a bullet covered in the
+        last update.
+    */
+    public float getSweepRight(int index) {
+        return sweepRight[index];
+    }
+
+
+    /**
+        Gets the collision layer of a bullet.
+    */
+    public int getLayer(int index) {
+        return layer[index];
+    }
+
+
+    /**
+        Checks if a bullet has hit something or expired. Dead
+        bullets are removed by removeDead().
+    */
+    public boolean isDead(int index) {
+        return dead[index];
+    }
+
+
+    /**
+        Marks a bullet as dead.
+    */
+    public void kill(int index) {
+        dead[index] = true;
+    }
+
+
+    /**
+        Fires a new bullet from the specified position with the
+        specified velocity and collision layer and mask.
+    */
+    public void add(float x, float y, float dx, float dy,
+        int layer, int mask)
+    {
+        if (size == this.x.length) {
+            grow();
+        }
+        this.x[size] = x;
+        this.y[size] = y;
+        this.dx[size] = dx;
+        this.dy[size] = dy;
+        sweepLeft[size] = x;
+        sweepRight[size] = x + width;
+        this.layer[size] = layer;
+        this.mask[size] = mask;
+        age[size] = 0;
+        dead[size] = false;
+        size++;
+    }
+
+
+    /**
+        Removes all bullets.
+    */
+    public void clear() {
+        size = 0;
+    }
+
+
+    /**
+        Gets the number of bytes writeState() writes.
+    */
+    public int getStateSize() {
+        return 4 + size * BULLET_STATE_SIZE;
+    }
+
+
+    /**
+        Writes every bullet to a buffer, for a snapshot of the
+        game.
+    */
+    public void writeState(ByteBuffer buffer) {
+        buffer.putInt(size);
+        for (int i=0; i<size; i++) {
+            buffer.putFloat(x[i]);
+            buffer.putFloat(y[i]);
+            buffer.putFloat(dx[i]);
+            buffer.putFloat(dy[i]);
+            buffer.putFloat(sweepLeft[i]);
+            buffer.putFloat(sweepRight[i]);
+            buffer.putInt(layer[i]);
+            buffer.putInt(mask[i]);
+            buffer.putLong(age[i]);
+            buffer.put((byte)(dead[i]?1:0));
+        }
+    }
+
+
+    /**
+        Replaces every bullet with the bullets written by
+        writeState().
+    */
+    public void readState(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        while (x.length < count) {
+            grow();
+        }
+        size = count;
+        for (int i=0; i<size; i++) {
+            x[i] = buffer.getFloat();
+            y[i] = buffer.getFloat();
+            dx[i] = buffer.getFloat();
+            dy[i] = buffer.getFloat();
+            sweepLeft[i] = buffer.getFloat();
+            sweepRight[i] = buffer.getFloat();
+            layer[i] = buffer.getInt();
+            mask[i] = buffer.getInt();
+            age[i] = buffer.getLong();
+            dead[i] = (buffer.get() == 1);
+        }
+    }
+
+
+    /**
+        Moves every bullet. Bullets fall with gravity and slide
+        along the floor, and die when they run into a wall, leave
+        the map or are older than LIFETIME.
+    */
+    public void update(TileMap map, long elapsedTime) {
+        float gravity = MainGameState.GRAVITY * elapsedTime;
+        int mapWidth = TileMapRenderer.tilesToPixels(map.getWidth());
+        int mapHeight = TileMapRenderer.tilesToPixels(map.getHeight());
+        for (int i=0; i<size; i++) {
+            age[i] += elapsedTime;
+            dy[i] += gravity;
+
+            // change x: dies on the first solid tile column the
+            // front edge passes through
+            float oldX = x[i];
+            float newX = oldX + dx[i] * elapsedTime;
+            int top = TileMapRenderer.pixelsToTiles(y[i]);
+            int bottom = TileMapRenderer.pixelsToTiles(
+                y[i] + height - 1);
+            if (newX > oldX) {
+                int last = TileMapRenderer.pixelsToTiles(
+                    newX + width - 1);
+                for (int col=TileMapRenderer.pixelsToTiles(oldX + width);
+                    col<=last && !dead[i]; col++)
+                {
+                    dead[i] = isSolidColumn(map, col, top, bottom);
+                }
+            }
+            else if (newX < oldX) {
+                int last = TileMapRenderer.pixelsToTiles(newX);
+                for (int col=TileMapRenderer.pixelsToTiles(oldX - 1);
+                    col>=last && !dead[i]; col--)
+                {
+                    dead[i] = isSolidColumn(map, col, top, bottom);
+                }
+            }
+            x[i] = newX;
+            sweepLeft[i] = Math.min(oldX, newX);
+            sweepRight[i] = Math.max(oldX, newX) + width;
+
+            // change y: stops on the first solid tile row
+            float oldY = y[i];
+            float newY = oldY + dy[i] * elapsedTime;
+            int left = TileMapRenderer.pixelsToTiles(newX);
+            int right = TileMapRenderer.pixelsToTiles(newX + width - 1);
+            if (newY > oldY) {
+                int last = TileMapRenderer.pixelsToTiles(
+                    newY + height - 1);
+                for (int row=TileMapRenderer.pixelsToTiles(oldY + height);
+                    row<=last; row++)
+                {
+                    if (isSolidRow(map, row, left, right)) {
+                        newY = TileMapRenderer.tilesToPixels(row) - height;
+                        dy[i] = 0;
+                        break;
+                    }
+                }
+            }
+            else if (newY < oldY) {
+                int last = TileMapRenderer.pixelsToTiles(newY);
+                for (int row=TileMapRenderer.pixelsToTiles(oldY - 1);
+                    row>=last; row--)
+                {
+                    if (isSolidRow(map, row, left, right)) {
+                        newY = TileMapRenderer.tilesToPixels(row + 1);
+                        dy[i] = 0;
+                        break;
+                    }
+                }
+            }
+            y[i] = newY;
+
+            if (age[i] > LIFETIME || newX + width < 0 ||
+                newX > mapWidth || newY > mapHeight)
+            {
+                dead[i] = true;
+            }
+        }
+    }
+
+
+    /**
+        Checks if a tile column has a solid tile between two rows.
+        Columns off the left or right of the map are solid.
+    */
+    private boolean isSolidColumn(TileMap map, int col, int top,
+        int bottom)
+    {
+        if (col < 0 || col >= map.getWidth()) {
+            return true;
+        }
+        for (int row=top; row<=bottom; row++) {
+            if (map.isSolid(col, row)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+        Checks if a tile row has a solid tile between two columns.
+    */
+    private boolean isSolidRow(TileMap map, int row, int left,
+        int right)
+    {
+        for (int col=left; col<=right; col++) {
+            if (map.isSolid(col, row)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+        Checks if the path a bullet covered in the last update
+        overlaps the specified Sprite, and their collision layers
+        interact. The whole path is tested, so fast bullets can't
+        pass through a Sprite between updates.
+    */
+    public boolean isHit(int index, Sprite sprite) {
+        if ((layer[index] & sprite.getCollisionMask()) == 0 ||
+            (mask[index] & sprite.getCollisionLayer()) == 0)
+        {
+            return false;
+        }
+        int sx = Math.round(sprite.getX());
+        int sy = Math.round(sprite.getY());
+        int by = Math.round(y[index]);
+        return (sweepLeft[index] < sx + sprite.getWidth() &&
+            sx < sweepRight[index] &&
+            by < sy + sprite.getHeight() &&
+            sy < by + height);
+    }
+
+
+    /**
+        Kills every bullet that is hit by a bullet on a lower
+        layer, such as enemy bullets shot down by the player. The
+        bullet on the lower layer is kept, so player bullets
+        aren't used up. Only bullets whose mask has a higher
+        layer are tested against the others, so a few player
+        bullets against many enemy bullets stays cheap. Returns
+        the number of bullets killed.
+    */
+    public int collideBullets() {
+        int killed = 0;
+        for (int i=0; i<size; i++) {
+            // skip bullets that can't hit a higher layer
+            if (dead[i] || (mask[i] & -(layer[i] << 1)) == 0) {
+                continue;
+            }
+            float l = sweepLeft[i];
+            float r = sweepRight[i];
+            float t = y[i];
+            float b = t + height;
+            int lay = layer[i];
+            int msk = mask[i];
+            for (int j=0; j<size; j++) {
+                if (!dead[j] && (msk & layer[j]) != 0 &&
+                    (mask[j] & lay) != 0 && layer[j] > lay &&
+                    l < sweepRight[j] && sweepLeft[j] < r &&
+                    t < y[j] + height && y[j] < b)
+                {
+                    dead[j] = true;
+                    killed++;
+                }
+            }
+        }
+        return killed;
+    }
+
+
+    /**
+        Removes every dead bullet.
+    */
+    public void removeDead() {
+        int i = 0;
+        while (i < size) {
+            if (dead[i]) {
+                size--;
+                x[i] = x[size];
+                y[i] = y[size];
+                dx[i] = dx[size];
+                dy[i] = dy[size];
+                sweepLeft[i] = sweepLeft[size];
+                sweepRight[i] = sweepRight[size];
+                layer[i] = layer[size];
+                mask[i] = mask[size];
+                age[i] = age[size];
+                dead[i] = dead[size];
+            }
+            else {
+                i++;
+            }
+        }
+    }
+
+
+    /**
+        Draws the bullets that are on a screen of the specified
+        width, with the specified offset.
+    */
+    public void draw(Graphics2D g, int offsetX, int offsetY,
+        int screenWidth)
+    {
+        for (int i=0; i<size; i++) {
+            int bx = Math.round(x[i]) + offsetX;
+            if (bx + width > 0 && bx < screenWidth) {
+                g.drawImage(image, bx, Math.round(y[i]) + offsetY,
+                    null);
+            }
+        }
+    }
+
+
+    private void grow() {
+        int capacity = x.length * 2;
+        x = grow(x, capacity);
+        y = grow(y, capacity);
+        dx = grow(dx, capacity);
+        dy = grow(dy, capacity);
+        sweepLeft = grow(sweepLeft, capacity);
+        sweepRight = grow(sweepRight, capacity);
+        int[] newLayer = new int[capacity];
+        System.arraycopy(layer, 0, newLayer, 0, size);
+        layer = newLayer;
+        int[] newMask = new int[capacity];
+        System.arraycopy(mask, 0, newMask, 0, size);
+        mask = newMask;
+        long[] newAge = new long[capacity];
+        System.arraycopy(age, 0, newAge, 0, size);
+        age = newAge;
+        boolean[] newDead = new boolean[capacity];
+        System.arraycopy(dead, 0, newDead, 0, size);
+        dead = newDead;
+    }
+
+
+    private float[] grow(float[] array, int capacity) {
+        float[] newArray = new float[capacity];
+        System.arraycopy(array, 0, newArray, 0, size);
+        return newArray;
+    }
+}
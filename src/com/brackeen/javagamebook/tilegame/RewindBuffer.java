@@ -0,0 +1,113 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.nio.ByteBuffer;
+
+/**
+    The RewindBuffer class keeps the last few snapshots of a
+    game, each a compact binary frame, in a ring. When the ring is
+    full, a new snapshot replaces the oldest one.
+
+    <p>Frames are allocated once and reused, so taking a snapshot
+    or reading one back doesn't allocate. A frame only grows when
+    a snapshot is bigger than any it has held before.
+
+    <p>MainGameState decides what goes in a frame (see
+    MainGameState.setRewindBuffer()); this class only keeps the
+    frames.
+*/
+public class RewindBuffer {
+
+    private ByteBuffer[] frames;
+    private int newest = -1;
+    private int size;
+
+    /**
+        Creates a new RewindBuffer that keeps the specified number
+        of snapshots, each with room for the specified number of
+        bytes to start with.
+    */
+    public RewindBuffer(int capacity, int frameSize) {
+        frames = new ByteBuffer[capacity];
+        for (int i=0; i<capacity; i++) {
+            frames[i] = ByteBuffer.allocate(frameSize);
+        }
+    }
+
+
+    /**
+        Gets the number of snapshots this buffer can keep.
+    */
+    public int getCapacity() {
+        return frames.length;
+    }
+
+
+    /**
+        Gets the number of snapshots in this buffer.
+    */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+        Starts a new snapshot of the specified size, in bytes,
+        and returns the frame to write it to. The snapshot isn't
+        kept until finishFrame() is called.
+    */
+    public ByteBuffer startFrame(int frameSize) {
+        int next = (newest + 1) % frames.length;
+        if (frames[next].capacity() < frameSize) {
+            frames[next] = ByteBuffer.allocate(frameSize * 2);
+        }
+        ByteBuffer frame = frames[next];
+        frame.clear();
+        return frame;
+    }
+
+
+    /**
+        Keeps the snapshot written since startFrame(), replacing
+        the oldest one if the buffer is full.
+    */
+    public void finishFrame() {
+        newest = (newest + 1) % frames.length;
+        frames[newest].flip();
+        size = Math.min(size + 1, frames.length);
+    }
+
+
+    /**
+        Gets a snapshot to read, by age: 0 is the newest snapshot
+        and size() - 1 the oldest.
+    */
+    public ByteBuffer getFrame(int age) {
+        if (age < 0 || age >= size) {
+            throw new IndexOutOfBoundsException("No snapshot " + age);
+        }
+        ByteBuffer frame =
+            frames[(newest - age + frames.length) % frames.length];
+        frame.rewind();
+        return frame;
+    }
+
+
+    /**
+        Drops the specified number of the newest snapshots, like
+        after rewinding to an older one.
+    */
+    public void dropNewest(int count) {
+        count = Math.min(count, size);
+        newest = (newest - count + frames.length) % frames.length;
+        size -= count;
+    }
+
+
+    /**
+        Drops every snapshot.
+    */
+    public void clear() {
+        newest = -1;
+        size = 0;
+    }
+}
@@ -0,0 +1,151 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.util.Arrays;
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+
+/**
+    The RewindCheck class checks that rewinding puts a game back
+    the way it was. A game plays a map taking a snapshot every
+    tick. Again and again, the game is described, played on for
+    some ticks (sometimes with an enemy removed), and rewound that
+    many ticks, and the description is compared with the one from
+    before. The description has the session (game time, health,
+    score and power ups), the player, every Sprite in the map and
+    the bullets.
+*/
+public class RewindCheck {
+
+    /**
+        Runs the check and prints how many rewinds matched.
+        Arguments: number of rewinds, ticks played before each
+        rewind, map name. Exits with status 1 if a rewind didn't
+        put the game back.
+    */
+    public static void main(String[] args) {
+        int rewinds = (args.length > 0)?Integer.parseInt(args[0]):500;
+        int age = (args.length > 1)?Integer.parseInt(args[1]):30;
+        String mapName = (args.length > 2)?args[2]:"2";
+
+        System.setProperty("java.awt.headless", "true");
+        SimulationHost host = new SimulationHost(1);
+        MainGameState state = host.addSession(
+            new GameSession(mapName));
+        state.setRewindBuffer(new RewindBuffer(age * 2, 1024), 1);
+        if (!state.isRewindable()) {
+            System.out.println("Map " + mapName +
+                " is streamed, so it can't be rewound");
+            host.close();
+            System.exit(1);
+        }
+
+        int matched = 0;
+        int failed = 0;
+        int tick = 0;
+        while (matched + failed < rewinds) {
+            // run right, jumping and shooting now and then
+            state.setActions(false, true, (tick % 40) < 5, false,
+                (tick % 200) < 150);
+            host.run(1);
+            tick++;
+            TileMap map = state.getMap();
+            if (tick % 4 != 0 ||
+                state.getRewindBuffer().size() <= age)
+            {
+                continue;
+            }
+
+            String before = describe(state);
+            for (int i=0; i<age; i++) {
+                host.run(1);
+                tick++;
+                // remove an enemy now and then, so a rewind has
+                // to put it back
+                if (i == age / 2 && tick % 32 == 0 &&
+                    map.getNumSprites() > 0)
+                {
+                    map.queueRemove(map.getSprite(
+                        tick % map.getNumSprites()));
+                    map.applyChanges();
+                }
+            }
+            // a new map drops the snapshots, so try again
+            if (state.getMap() != map ||
+                state.getRewindBuffer().size() <= age)
+            {
+                continue;
+            }
+            if (state.rewind(age) && before.equals(describe(state))) {
+                matched++;
+            }
+            else {
+                failed++;
+            }
+        }
+        host.close();
+
+        System.out.println(matched + " of " + rewinds +
+            " rewinds put the game back");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+
+    /**
+        Describes the state of a game as a string. The Sprites are
+        sorted, since a rewind may put them back in another order.
+    */
+    private static String describe(MainGameState state) {
+        GameSession session = state.getSession();
+        TileMap map = state.getMap();
+        StringBuffer buffer = new StringBuffer();
+        buffer.append(session.getTime() + " " + session.getHealth() +
+            " " + session.getScore() + " " + session.isStarActive() +
+            " " + session.getStarCount() + " " +
+            session.isGasActive() + " " + session.getGasCount() +
+            "\n");
+        buffer.append(describe(map.getPlayer()) + "\n");
+
+        int numSprites = map.getNumSprites();
+        for (int c=0; c<map.getNumChunks(); c++) {
+            numSprites += map.getChunkPickups(c).size();
+        }
+        String[] sprites = new String[numSprites];
+        int n = 0;
+        for (int i=0; i<map.getNumSprites(); i++) {
+            sprites[n++] = describe(map.getSprite(i));
+        }
+        for (int c=0; c<map.getNumChunks(); c++) {
+            for (int j=0; j<map.getChunkPickups(c).size(); j++) {
+                sprites[n++] = describe(
+                    map.getChunkPickups(c).getSprite(j));
+            }
+        }
+        Arrays.sort(sprites);
+        for (int i=0; i<sprites.length; i++) {
+            buffer.append(sprites[i] + "\n");
+        }
+
+        ProjectileSystem bullets = map.getProjectiles();
+        for (int i=0; i<bullets.size(); i++) {
+            buffer.append("bullet " + bullets.getX(i) + " " +
+                bullets.getY(i) + "\n");
+        }
+        return buffer.toString();
+    }
+
+
+    private static String describe(Sprite sprite) {
+        String description = sprite.getClass().getName() + " " +
+            sprite.getX() + " " + sprite.getY() + " " +
+            sprite.getVelocityX() + " " + sprite.getVelocityY();
+        if (sprite instanceof Creature) {
+            Creature creature = (Creature)sprite;
+            description += " " + creature.getState() + " " +
+                creature.getStateTime() + " " +
+                creature.LASTBUGSHOT + " " + creature.BULLETCOUNT;
+        }
+        return description;
+    }
+}
@@ -0,0 +1,299 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+
+/**
+    The SaveGame class saves a GameSession to a file without
+    stalling the game. save() only copies the session into a
+    buffer, which takes microseconds; the buffer is written in the
+    background with an AsynchronousFileChannel.
+
+    <p>Each save is written to a temporary file, forced to disk,
+    and then renamed over the save file in one atomic step, so the
+    save file always holds a complete save, even if the game dies
+    while saving. If the game saves again while a save is being
+    written, only the newest one is written next.
+
+    <p>A save file holds, in big-endian order: the int MAGIC, the
+    int VERSION, the length of the data, the CRC-32 of the data,
+    and then the data: the session's current map number, its map
+    name (a length, or -1, and the chars), and its state (see
+    GameSession.writeState()). The session's game time is saved
+    with its power up timers, so a loaded game goes on from where
+    it was saved.
+*/
+public class SaveGame {
+
+    /**
+        The first four bytes of a save file ("TSAV").
+    */
+    public static final int MAGIC = 0x54534156;
+
+    /**
+        The version of the save file format. Versions 1 and 2
+        saved system times instead of the game time.
+    */
+    public static final int VERSION = 3;
+
+    private static final int HEADER_SIZE = 16;
+
+    private Path path;
+    private Path tempPath;
+
+    // the buffer save() fills, and the one being written. They
+    // are swapped when a write starts.
+    private ByteBuffer captured;
+    private ByteBuffer writing;
+    private CRC32 crc = new CRC32();
+    private boolean busy;
+    private boolean dirty;
+    private IOException lastError;
+
+    /**
+        Creates a new SaveGame that saves to the specified file.
+    */
+    public SaveGame(File file) {
+        path = file.toPath();
+        tempPath = new File(file.getPath() + ".tmp").toPath();
+        captured = ByteBuffer.allocate(256);
+        writing = ByteBuffer.allocate(256);
+    }
+
+
+    /**
+        Saves the specified GameSession. The session is copied
+        right away, and written to the file in the background.
+    */
+    public synchronized void save(GameSession session) {
+        String name = session.getMapName();
+        int size = HEADER_SIZE + 6 + session.getStateSize() +
+            ((name != null)?name.length() * 2:0);
+        if (captured.capacity() < size) {
+            captured = ByteBuffer.allocate(size * 2);
+        }
+        captured.clear();
+        captured.position(HEADER_SIZE);
+        captured.putInt(session.getCurrentMap());
+        if (name == null) {
+            captured.putShort((short)-1);
+        }
+        else {
+            captured.putShort((short)name.length());
+            for (int i=0; i<name.length(); i++) {
+                captured.putChar(name.charAt(i));
+            }
+        }
+        session.writeState(captured);
+
+        int length = captured.position() - HEADER_SIZE;
+        crc.reset();
+        crc.update(captured.array(), HEADER_SIZE, length);
+        captured.putInt(0, MAGIC);
+        captured.putInt(4, VERSION);
+        captured.putInt(8, length);
+        captured.putInt(12, (int)crc.getValue());
+        captured.flip();
+
+        if (busy) {
+            dirty = true;
+        }
+        else {
+            startWrite();
+        }
+    }
+
+
+    /**
+        Waits until every save has been written. Returns the error
+        of the last save that failed, or null.
+    */
+    public synchronized IOException flush() {
+        while (busy) {
+            try {
+                wait();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return lastError;
+    }
+
+
+    /**
+        Gets the error of the last save that failed, or null if
+        the last save was written.
+    */
+    public synchronized IOException getLastError() {
+        return lastError;
+    }
+
+
+    /**
+        Starts writing the captured save in the background. The
+        caller must hold the lock.
+    */
+    private void startWrite() {
+        ByteBuffer buffer = captured;
+        captured = writing;
+        writing = buffer;
+        busy = true;
+        dirty = false;
+        // opening the file could block, so it's done off the
+        // game thread too
+        ForkJoinPool.commonPool().execute(new Runnable() {
+            public void run() {
+                write();
+            }
+        });
+    }
+
+
+    private void write() {
+        AsynchronousFileChannel channel;
+        try {
+            channel = AsynchronousFileChannel.open(tempPath,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        catch (IOException ex) {
+            finishWrite(ex);
+            return;
+        }
+        channel.write(writing, 0, channel, new WriteHandler());
+    }
+
+
+    /**
+        Finishes writing the temporary file: forces it to disk and
+        renames it over the save file.
+    */
+    private class WriteHandler implements
+        CompletionHandler<Integer, AsynchronousFileChannel>
+    {
+
+        public void completed(Integer count,
+            AsynchronousFileChannel channel)
+        {
+            if (writing.hasRemaining()) {
+                channel.write(writing, writing.position(), channel,
+                    this);
+                return;
+            }
+            IOException error = null;
+            try {
+                // the file must be closed before it is renamed,
+                // even if forcing it failed
+                try {
+                    channel.force(true);
+                }
+                finally {
+                    channel.close();
+                }
+                Files.move(tempPath, path,
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException ex) {
+                error = ex;
+            }
+            finishWrite(error);
+        }
+
+
+        public void failed(Throwable ex,
+            AsynchronousFileChannel channel)
+        {
+            try {
+                channel.close();
+            }
+            catch (IOException closeEx) {
+                // already failed
+            }
+            finishWrite((ex instanceof IOException)?
+                (IOException)ex:new IOException(ex.toString()));
+        }
+    }
+
+
+    private synchronized void finishWrite(IOException error) {
+        lastError = error;
+        if (dirty) {
+            startWrite();
+        }
+        else {
+            busy = false;
+            notifyAll();
+        }
+    }
+
+
+    /**
+        Loads the GameSession saved in the specified file. The
+        file is memory-mapped and its checksum is checked.
+        Throws an IOException if the file is missing, damaged or
+        of another version.
+    */
+    public static GameSession load(File file) throws IOException {
+        ByteBuffer buffer;
+        FileChannel channel =
+            new RandomAccessFile(file, "r").getChannel();
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                channel.size());
+        }
+        finally {
+            channel.close();
+        }
+
+        if (buffer.remaining() < HEADER_SIZE ||
+            buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+        {
+            throw new IOException("Not a save file: " + file);
+        }
+        int length = buffer.getInt(8);
+        if (length < 0 || buffer.remaining() != HEADER_SIZE + length) {
+            throw new IOException("Bad save file size: " + file);
+        }
+        CRC32 check = new CRC32();
+        buffer.position(HEADER_SIZE);
+        check.update(buffer);
+        if ((int)check.getValue() != buffer.getInt(12)) {
+            throw new IOException("Bad save file checksum: " + file);
+        }
+
+        try {
+            buffer.position(HEADER_SIZE);
+            int currentMap = buffer.getInt();
+            int nameLength = buffer.getShort();
+            String name = null;
+            if (nameLength >= 0) {
+                char[] chars = new char[nameLength];
+                for (int i=0; i<nameLength; i++) {
+                    chars[i] = buffer.getChar();
+                }
+                name = new String(chars);
+            }
+            GameSession session = new GameSession(name);
+            session.setCurrentMap(currentMap);
+            session.readState(buffer);
+            return session;
+        }
+        catch (RuntimeException ex) {
+            throw new IOException("Bad save file: " + file);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.graphics.SpriteStore;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+
+/**
+    The ShootingSystem is the AI of enemy Creatures that shoot at
+    the player (TYPE_SHOOTING). Bullets are added to the map's
+    ProjectileSystem, so it runs as a merge system. A SHOT_FIRED
+    event is published for every bullet.
+*/
+public class ShootingSystem implements GameSystem {
+
+    private GameSession session;
+    private GameEventBus events;
+
+    /**
+        Creates a new ShootingSystem that times shots with the
+        game time of the specified GameSession, and publishes to
+        the specified GameEventBus.
+    */
+    public ShootingSystem(GameSession session, GameEventBus events) {
+        this.session = session;
+        this.events = events;
+    }
+
+
+    public void update(TileMap map, int chunk, long elapsedTime) {
+        SpriteStore store = map.getChunkSprites(chunk);
+        int[] type = store.getType();
+        int[] state = store.getState();
+        for (int j=0; j<store.size(); j++) {
+            if ((type[j] & Creature.TYPE_SHOOTING) != 0 &&
+                state[j] != Creature.STATE_DEAD)
+            {
+                shoot(map, (Creature)store.getSprite(j));
+            }
+        }
+    }
+
+
+    /**
+        Lets a Creature shoot at the player.
+    */
+    private void shoot(TileMap map, Creature creature) {
+        long now = session.getTime();
+        if (creature.LASTBUGSHOT == Creature.NOT_SHOT) {
+            // first seen now, like it was just spawned
+            creature.LASTBUGSHOT = now;
+        }
+        if(creature.getVelocityX() != 0f){
+            if((creature.BULLETCOUNT > 0 &&
+                    now - creature.LASTBUGSHOT > 800) ||
+                    (creature.BULLETCOUNT == 0 &&
+                            ((map.getPlayer().getVelocityX()==0 && now - creature.LASTBUGSHOT > 2000) ||
+                                    (map.getPlayer().getVelocityX()!=0 && now - creature.LASTBUGSHOT > 500)))){
+                float x = creature.getX() + 70;
+                float velocityX = 0.7f;
+                if(creature.direction == "left"){
+                    x = creature.getX() - 70;
+                    velocityX = -0.7f;
+                }
+                map.getProjectiles().add(x, creature.getY() - 20,
+                    velocityX, 0, CollisionLayer.ENEMY_BULLET,
+                    CollisionLayer.ENEMY_BULLET_MASK);
+                events.publish(GameEventBus.SHOT_FIRED,
+                    CollisionLayer.ENEMY_BULLET, x,
+                    creature.getY() - 20, velocityX);
+                creature.LASTBUGSHOT = now;
+                creature.BULLETCOUNT++;
+            }
+        }else{
+            creature.LASTBUGSHOT = now;
+        }
+    }
+}
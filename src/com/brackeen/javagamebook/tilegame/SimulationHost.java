@@ -0,0 +1,250 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.GraphicsConfiguration;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+    The SimulationHost class runs many games at once in one JVM,
+    without a screen, sound or keyboard, for bots and regression
+    runs. Every game has its own GameSession and MainGameState,
+    but the images and "host" Sprites are loaded once and shared
+    by all of them.
+
+    <p>Games are ticked on a work-stealing ForkJoinPool in rounds.
+    In each round, every game runs up to its tick budget, and a
+    game never starts the next round before every other game has
+    finished this one, so slow games can't fall behind.
+*/
+public class SimulationHost {
+
+    /**
+        The time, in milliseconds, simulated by each tick.
+    */
+    public static final long TICK_TIME = 20;
+
+    private static final int WIDTH = 800;
+    private static final int HEIGHT = 600;
+
+    private ForkJoinPool pool;
+    private GraphicsConfiguration gc;
+    private TileGameResourceManager sharedResources;
+    private ArrayList sessions;
+    private int tickBudget;
+    private long totalTicks;
+    private long totalTime;
+
+    /**
+        Creates a new SimulationHost that runs its games on the
+        specified number of threads, and loads the shared
+        resources.
+    */
+    public SimulationHost(int numThreads) {
+        pool = new ForkJoinPool(numThreads);
+        gc = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB).
+            createGraphics().getDeviceConfiguration();
+        sharedResources = new TileGameResourceManager(gc, null, null);
+        sharedResources.loadResources();
+        sessions = new ArrayList();
+        tickBudget = 1;
+    }
+
+
+    /**
+        Adds a game that plays the specified GameSession, and
+        loads its first map. Returns the MainGameState of the
+        game, so its GameActions can be pressed.
+    */
+    public MainGameState addSession(GameSession session) {
+        HostedSession hosted = createSession(session);
+        sessions.add(hosted);
+        return hosted.state;
+    }
+
+
+    /**
+        Replaces a game with a new one that plays the specified
+        GameSession. Returns the MainGameState of the new game.
+    */
+    public MainGameState resetSession(int index, GameSession session) {
+        HostedSession hosted = createSession(session);
+        sessions.set(index, hosted);
+        return hosted.state;
+    }
+
+
+    /**
+        Removes every game.
+    */
+    public void removeAllSessions() {
+        sessions.clear();
+    }
+
+
+    private HostedSession createSession(GameSession session) {
+        MainGameState state = new MainGameState(null, null, session,
+            WIDTH, HEIGHT);
+        state.loadResources(
+            new TileGameResourceManager(sharedResources, gc));
+        return new HostedSession(session, state);
+    }
+
+
+    /**
+        Gets the number of games.
+    */
+    public int getNumSessions() {
+        return sessions.size();
+    }
+
+
+    /**
+        Gets the GameSession of a game.
+    */
+    public GameSession getSession(int index) {
+        return ((HostedSession)sessions.get(index)).session;
+    }
+
+
+    /**
+        Gets the MainGameState of a game.
+    */
+    public MainGameState getState(int index) {
+        return ((HostedSession)sessions.get(index)).state;
+    }
+
+
+    /**
+        Gets the number of ticks a game has run.
+    */
+    public long getTicks(int index) {
+        return ((HostedSession)sessions.get(index)).ticks;
+    }
+
+
+    /**
+        Sets the number of ticks each game runs per round. Larger
+        budgets schedule less often but let games drift further
+        apart within a round.
+    */
+    public void setTickBudget(int tickBudget) {
+        this.tickBudget = Math.max(1, tickBudget);
+    }
+
+
+    /**
+        Gets the number of ticks each game runs per round.
+    */
+    public int getTickBudget() {
+        return tickBudget;
+    }
+
+
+    /**
+        Runs every game for the specified number of ticks.
+    */
+    public void run(long ticks) {
+        long startTime = System.nanoTime();
+        ForkJoinTask[] tasks = new ForkJoinTask[sessions.size()];
+        long done = 0;
+        while (done < ticks) {
+            int budget = (int)Math.min(tickBudget, ticks - done);
+            for (int i=0; i<tasks.length; i++) {
+                HostedSession hosted = (HostedSession)sessions.get(i);
+                hosted.budget = budget;
+                tasks[i] = pool.submit(hosted);
+            }
+            for (int i=0; i<tasks.length; i++) {
+                tasks[i].join();
+            }
+            done += budget;
+        }
+        totalTicks += ticks * tasks.length;
+        totalTime += System.nanoTime() - startTime;
+    }
+
+
+    /**
+        Gets the number of ticks run by all games together, per
+        second of run() time.
+    */
+    public double getTicksPerSecond() {
+        if (totalTime == 0) {
+            return 0;
+        }
+        return totalTicks * 1000000000.0 / totalTime;
+    }
+
+
+    /**
+        Gets the number of ticks run per second for each thread
+        of the pool, to size hardware by.
+    */
+    public double getTicksPerSecondPerCore() {
+        return getTicksPerSecond() / pool.getParallelism();
+    }
+
+
+    /**
+        Stops the threads of the pool.
+    */
+    public void close() {
+        pool.shutdown();
+    }
+
+
+    /**
+        A game run by the host.
+    */
+    private static class HostedSession implements Runnable {
+
+        private GameSession session;
+        private MainGameState state;
+        private long ticks;
+        private int budget;
+
+        public HostedSession(GameSession session,
+            MainGameState state)
+        {
+            this.session = session;
+            this.state = state;
+        }
+
+        public void run() {
+            for (int i=0; i<budget; i++) {
+                state.update(TICK_TIME);
+            }
+            ticks += budget;
+        }
+    }
+
+
+    /**
+        Runs a number of games on the specified map and prints
+        the ticks per second. Arguments: number of games, ticks
+        per game, map name, number of threads.
+    */
+    public static void main(String[] args) {
+        int numSessions = (args.length > 0)?
+            Integer.parseInt(args[0]):100;
+        long ticks = (args.length > 1)?Long.parseLong(args[1]):1000;
+        String mapName = (args.length > 2)?args[2]:"1";
+        int numThreads = (args.length > 3)?Integer.parseInt(args[3]):
+            Runtime.getRuntime().availableProcessors();
+
+        System.setProperty("java.awt.headless", "true");
+        SimulationHost host = new SimulationHost(numThreads);
+        for (int i=0; i<numSessions; i++) {
+            host.addSession(new GameSession(mapName));
+        }
+        host.run(ticks);
+        System.out.println(numSessions + " games, " + ticks +
+            " ticks each, on " + numThreads + " threads: " +
+            Math.round(host.getTicksPerSecond()) + " ticks/sec, " +
+            Math.round(host.getTicksPerSecondPerCore()) +
+            " ticks/sec per core");
+        host.close();
+    }
+}
@@ -0,0 +1,162 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.sprites.Creature;
+
+/**
+    The SpriteBounds class keeps the pixel bounds and collision
+    layers of a list of Sprites in int arrays, worked out once per
+    collision pass. One box can then be tested against a block of
+    other boxes in a single loop with no branches or method calls.
+
+    <p>If the jdk.incubator.vector module is loaded (run with
+    --add-modules jdk.incubator.vector), the block is tested with
+    the Vector API, several boxes per instruction (see
+    VectorSpriteBounds). Otherwise, or for the boxes left over,
+    a scalar loop does the same test.
+
+    <p>The test gives the same result as
+    MainGameState.isCollision() for each pair.
+*/
+public class SpriteBounds {
+
+    private static final boolean VECTOR_AVAILABLE =
+        isVectorModuleLoaded();
+
+    private int[] left = new int[0];
+    private int[] top = new int[0];
+    private int[] right = new int[0];
+    private int[] bottom = new int[0];
+    private int[] layer = new int[0];
+    private int[] mask = new int[0];
+    private boolean vectorized = VECTOR_AVAILABLE;
+
+
+    private static boolean isVectorModuleLoaded() {
+        if (!ModuleLayer.boot().findModule(
+            "jdk.incubator.vector").isPresent())
+        {
+            return false;
+        }
+        try {
+            return VectorSpriteBounds.getBlockSize() > 1;
+        }
+        catch (LinkageError ex) {
+            return false;
+        }
+    }
+
+
+    /**
+        Checks if the Vector API can be used to test boxes.
+    */
+    public static boolean isVectorAvailable() {
+        return VECTOR_AVAILABLE;
+    }
+
+
+    /**
+        Sets whether boxes are tested with the Vector API, if it
+        is available. It is used by default when it's available.
+    */
+    public void setVectorized(boolean vectorized) {
+        this.vectorized = vectorized && VECTOR_AVAILABLE;
+    }
+
+
+    /**
+        Checks if boxes are tested with the Vector API.
+    */
+    public boolean isVectorized() {
+        return vectorized;
+    }
+
+    /**
+        Makes sure the bounds of at least the specified number of
+        Sprites can be stored.
+    */
+    public void ensureCapacity(int capacity) {
+        if (left.length < capacity) {
+            left = new int[capacity];
+            top = new int[capacity];
+            right = new int[capacity];
+            bottom = new int[capacity];
+            layer = new int[capacity];
+            mask = new int[capacity];
+        }
+    }
+
+
+    /**
+        Stores the bounds of a Sprite at the specified index. A
+        Creature that isn't alive gets no collision layers, so it
+        never collides.
+    */
+    public void set(int index, Sprite sprite) {
+        int x = Math.round(sprite.getX());
+        int y = Math.round(sprite.getY());
+        if (sprite instanceof Creature &&
+            !((Creature)sprite).isAlive())
+        {
+            set(index, x, y, x + sprite.getWidth(),
+                y + sprite.getHeight(), 0, 0);
+        }
+        else {
+            set(index, x, y, x + sprite.getWidth(),
+                y + sprite.getHeight(), sprite.getCollisionLayer(),
+                sprite.getCollisionMask());
+        }
+    }
+
+
+    /**
+        Stores a box and its collision layer and mask at the
+        specified index.
+    */
+    public void set(int index, int left, int top, int right,
+        int bottom, int layer, int mask)
+    {
+        this.left[index] = left;
+        this.top[index] = top;
+        this.right[index] = right;
+        this.bottom[index] = bottom;
+        this.layer[index] = layer;
+        this.mask[index] = mask;
+    }
+
+
+    /**
+        Tests the box at the specified index against the boxes
+        from index first up to (but not including) index last.
+        For each box, hits[box - first] is set to 1 if the two
+        boxes overlap and their layers collide, or 0 otherwise.
+    */
+    public void testOverlaps(int index, int first, int last,
+        int[] hits)
+    {
+        int l = left[index];
+        int t = top[index];
+        int r = right[index];
+        int b = bottom[index];
+        int lay = layer[index];
+        int msk = mask[index];
+
+        int i = first;
+        if (vectorized) {
+            i = VectorSpriteBounds.testOverlaps(l, t, r, b, lay, msk,
+                left, top, right, bottom, layer, mask, first, last,
+                hits);
+        }
+
+        // each (a - b) is negative when a < b, so the sign bit of
+        // the AND of all the terms is set only if every test
+        // passes. Layer bits are small, so -(bits) is negative
+        // when any bit is set.
+        for (; i<last; i++) {
+            int test = (l - right[i]) & (left[i] - r) &
+                (t - bottom[i]) & (top[i] - b) &
+                -(lay & mask[i]) & -(layer[i] & msk);
+            hits[i - first] = test >>> 31;
+        }
+    }
+}
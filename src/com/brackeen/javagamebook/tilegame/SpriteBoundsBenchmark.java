@@ -0,0 +1,125 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.util.Random;
+
+/**
+    The SpriteBoundsBenchmark class times SpriteBounds.testOverlaps()
+    with the scalar loop and, if the jdk.incubator.vector module
+    is loaded, with the Vector API. Each pass tests every box of a
+    window against every box after it, like
+    MainGameState.findContacts() does. The results of both paths
+    are checked to be the same.
+*/
+public class SpriteBoundsBenchmark {
+
+    private static final int[] LAYERS = {
+        CollisionLayer.PLAYER, CollisionLayer.ENEMY,
+        CollisionLayer.POWERUP
+    };
+    private static final int[] MASKS = {
+        CollisionLayer.PLAYER_MASK, CollisionLayer.ENEMY_MASK,
+        CollisionLayer.POWERUP_MASK
+    };
+
+    /**
+        Runs the benchmark and prints the nanoseconds per tested
+        pair of each path. Arguments: number of boxes, number of
+        timed passes.
+    */
+    public static void main(String[] args) {
+        int numBoxes = (args.length > 0)?Integer.parseInt(args[0]):256;
+        int passes = (args.length > 1)?Integer.parseInt(args[1]):2000;
+
+        SpriteBounds bounds = new SpriteBounds();
+        bounds.ensureCapacity(numBoxes);
+        // boxes the size of a creature, spread over a screen and a
+        // margin, so some of them overlap
+        Random random = new Random(1);
+        for (int i=0; i<numBoxes; i++) {
+            int x = random.nextInt(1024);
+            int y = random.nextInt(600);
+            int kind = random.nextInt(LAYERS.length);
+            bounds.set(i, x, y, x + 64, y + 64, LAYERS[kind],
+                MASKS[kind]);
+        }
+        int[] hits = new int[numBoxes];
+        long pairs = (long)numBoxes * (numBoxes - 1) / 2 * passes;
+
+        bounds.setVectorized(false);
+        int scalarHits = run(bounds, numBoxes, hits, passes);
+        long scalarTime = time(bounds, numBoxes, hits, passes);
+        System.out.println("scalar: " + format(scalarTime, pairs) +
+            " ns/pair");
+
+        if (!SpriteBounds.isVectorAvailable()) {
+            System.out.println("vector: not available (run with " +
+                "--add-modules jdk.incubator.vector)");
+            return;
+        }
+        bounds.setVectorized(true);
+        int vectorHits = run(bounds, numBoxes, hits, passes);
+        long vectorTime = time(bounds, numBoxes, hits, passes);
+        System.out.println("vector: " + format(vectorTime, pairs) +
+            " ns/pair, " + VectorSpriteBounds.getBlockSize() +
+            " boxes per block, " +
+            format(scalarTime * 1000L, vectorTime * 1000L) +
+            "x faster");
+        if (vectorHits != scalarHits) {
+            System.out.println("vector and scalar hits differ: " +
+                vectorHits + " != " + scalarHits);
+            System.exit(1);
+        }
+    }
+
+
+    /**
+        Runs untimed passes, to warm up the JIT compiler, and
+        returns the number of hits of one pass.
+    */
+    private static int run(SpriteBounds bounds, int numBoxes,
+        int[] hits, int passes)
+    {
+        int count = 0;
+        for (int p=0; p<passes; p++) {
+            count = pass(bounds, numBoxes, hits);
+        }
+        return count;
+    }
+
+
+    private static long time(SpriteBounds bounds, int numBoxes,
+        int[] hits, int passes)
+    {
+        long startTime = System.nanoTime();
+        int count = 0;
+        for (int p=0; p<passes; p++) {
+            count += pass(bounds, numBoxes, hits);
+        }
+        long time = System.nanoTime() - startTime;
+        // use the count, so the passes can't be optimized away
+        if (count < 0) {
+            System.out.println(count);
+        }
+        return time;
+    }
+
+
+    private static int pass(SpriteBounds bounds, int numBoxes,
+        int[] hits)
+    {
+        int count = 0;
+        for (int i=0; i<numBoxes - 1; i++) {
+            bounds.testOverlaps(i, i + 1, numBoxes, hits);
+            for (int j=0; j<numBoxes - i - 1; j++) {
+                count += hits[j];
+            }
+        }
+        return count;
+    }
+
+
+    private static String format(long time, long count) {
+        return String.valueOf(Math.round(time * 1000.0 / count) /
+            1000.0);
+    }
+}
@@ -0,0 +1,178 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    The SpriteList class holds the Sprites of a map in a packed
+    array, so they can be walked by index. Removing a Sprite moves
+    the last Sprite into its place, so adding and removing are
+    both O(1), but the order of the Sprites changes.
+
+    <p>Each Sprite added gets a handle: a slot number plus a
+    generation that changes every time the slot is reused. A
+    handle kept after its Sprite is removed never finds another
+    Sprite that took the same slot.
+*/
+public class SpriteList {
+
+    /**
+        The handle of a Sprite that isn't in a list.
+    */
+    public static final int NO_HANDLE = -1;
+
+    private static final int SLOT_BITS = 20;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    private static final int GENERATION_MASK =
+        (1 << (31 - SLOT_BITS)) - 1;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // packed sprites and their handles
+    private Sprite[] sprites;
+    private int[] handles;
+    private int size;
+
+    // packed index and generation of each slot
+    private int[] indices;
+    private int[] generations;
+    private int numSlots;
+    private int[] freeSlots;
+    private int numFreeSlots;
+
+    /**
+        Creates a new, empty SpriteList.
+    */
+    public SpriteList() {
+        sprites = new Sprite[INITIAL_CAPACITY];
+        handles = new int[INITIAL_CAPACITY];
+        indices = new int[INITIAL_CAPACITY];
+        generations = new int[INITIAL_CAPACITY];
+        freeSlots = new int[INITIAL_CAPACITY];
+    }
+
+
+    /**
+        Gets the number of Sprites in this list.
+    */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+        Gets the Sprite at the specified index.
+    */
+    public Sprite get(int index) {
+        return sprites[index];
+    }
+
+
+    /**
+        Gets the Sprite with the specified handle, or null if the
+        Sprite has been removed.
+    */
+    public Sprite getByHandle(int handle) {
+        int index = indexOf(handle);
+        return (index < 0)?null:sprites[index];
+    }
+
+
+    /**
+        Adds a Sprite to this list and returns its handle.
+    */
+    public int add(Sprite sprite) {
+        int slot;
+        if (numFreeSlots > 0) {
+            slot = freeSlots[--numFreeSlots];
+        }
+        else {
+            if (numSlots == indices.length) {
+                indices = grow(indices, numSlots * 2, numSlots);
+                generations = grow(generations, numSlots * 2, numSlots);
+                freeSlots = grow(freeSlots, numSlots * 2, numFreeSlots);
+            }
+            slot = numSlots++;
+        }
+        if (size == sprites.length) {
+            Sprite[] newSprites = new Sprite[size * 2];
+            System.arraycopy(sprites, 0, newSprites, 0, size);
+            sprites = newSprites;
+            handles = grow(handles, size * 2, size);
+        }
+
+        int handle = (generations[slot] << SLOT_BITS) | slot;
+        indices[slot] = size;
+        sprites[size] = sprite;
+        handles[size] = handle;
+        size++;
+        sprite.setHandle(handle);
+        return handle;
+    }
+
+
+    /**
+        Removes a Sprite from this list. Returns false if the
+        Sprite isn't in this list.
+    */
+    public boolean remove(Sprite sprite) {
+        int index = indexOf(sprite.getHandle());
+        if (index < 0 || sprites[index] != sprite) {
+            return false;
+        }
+        removeAt(index);
+        return true;
+    }
+
+
+    /**
+        Removes all Sprites from this list. All handles given out
+        so far become stale.
+    */
+    public void clear() {
+        while (size > 0) {
+            removeAt(size - 1);
+        }
+    }
+
+
+    private int indexOf(int handle) {
+        if (handle < 0) {
+            return -1;
+        }
+        int slot = handle & SLOT_MASK;
+        if (slot >= numSlots) {
+            return -1;
+        }
+        int index = indices[slot];
+        if (index < 0 || handles[index] != handle) {
+            return -1;
+        }
+        return index;
+    }
+
+
+    private void removeAt(int index) {
+        int slot = handles[index] & SLOT_MASK;
+        sprites[index].setHandle(NO_HANDLE);
+
+        // move the last sprite into the empty place
+        size--;
+        if (index != size) {
+            sprites[index] = sprites[size];
+            handles[index] = handles[size];
+            indices[handles[index] & SLOT_MASK] = index;
+        }
+        sprites[size] = null;
+
+        // free the slot for a new generation
+        indices[slot] = -1;
+        generations[slot] = (generations[slot] + 1) & GENERATION_MASK;
+        freeSlots[numFreeSlots++] = slot;
+    }
+
+
+    private int[] grow(int[] array, int capacity, int length) {
+        int[] newArray = new int[capacity];
+        System.arraycopy(array, 0, newArray, 0, length);
+        return newArray;
+    }
+}
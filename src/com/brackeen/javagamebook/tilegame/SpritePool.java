@@ -0,0 +1,90 @@
+package com.brackeen.javagamebook.tilegame;
+
+import com.brackeen.javagamebook.graphics.Sprite;
+
+/**
+    The SpritePool class keeps Sprites of one kind that are no
+    longer in use so they can be used again instead of cloning a
+    new one from the "host" Sprite. Once a pool has as many Sprites
+    as are ever in use at once, acquiring a Sprite doesn't
+    allocate.
+*/
+public class SpritePool {
+
+    private Sprite hostSprite;
+    private Sprite[] free;
+    private int numFree;
+
+    /**
+        Creates a new, empty SpritePool for Sprites cloned from
+        the specified "host" Sprite.
+    */
+    public SpritePool(Sprite hostSprite) {
+        this.hostSprite = hostSprite;
+        free = new Sprite[16];
+    }
+
+
+    /**
+        Gets a Sprite from this pool, or clones a new one from
+        the host Sprite if the pool is empty. The Sprite is
+        stopped, alive and has its Animation at the start.
+    */
+    public Sprite acquire() {
+        if (numFree == 0) {
+            return (Sprite)hostSprite.clone();
+        }
+        Sprite sprite = free[--numFree];
+        free[numFree] = null;
+        return sprite;
+    }
+
+
+    /**
+        Returns a Sprite that is no longer in use to this pool.
+        The Sprite must not be in a map.
+    */
+    public void release(Sprite sprite) {
+        sprite.reset();
+        if (numFree == free.length) {
+            Sprite[] newFree = new Sprite[numFree * 2];
+            System.arraycopy(free, 0, newFree, 0, numFree);
+            free = newFree;
+        }
+        free[numFree++] = sprite;
+    }
+
+
+    /**
+        Makes sure at least the specified number of Sprites are
+        waiting in this pool, cloning the missing ones from the
+        host Sprite all at once.
+    */
+    public void reserve(int count) {
+        if (free.length < count) {
+            Sprite[] newFree = new Sprite[count];
+            System.arraycopy(free, 0, newFree, 0, numFree);
+            free = newFree;
+        }
+        while (numFree < count) {
+            free[numFree++] = (Sprite)hostSprite.clone();
+        }
+    }
+
+
+    /**
+        Gets the "host" Sprite the Sprites of this pool are
+        cloned from.
+    */
+    public Sprite getHostSprite() {
+        return hostSprite;
+    }
+
+
+    /**
+        Gets the number of Sprites waiting in this pool.
+    */
+    public int getNumFree() {
+        return numFree;
+    }
+}
@@ -0,0 +1,99 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.lang.reflect.Constructor;
+import com.brackeen.javagamebook.graphics.Animation;
+import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.tilegame.sprites.*;
+
+/**
+    The SpritePoolBenchmark class times the ways a Fly can be
+    spawned: cloned with its newCreature() factory, created by
+    reflection like Creature.clone() used to, and taken from a
+    SpritePool and given back.
+*/
+public class SpritePoolBenchmark {
+
+    /**
+        Runs the benchmark and prints the nanoseconds per spawn
+        of each way. Arguments: number of spawns per timed run.
+    */
+    public static void main(String[] args) throws Exception {
+        int spawns = (args.length > 0)?Integer.parseInt(args[0]):
+            1000000;
+
+        Image image = new BufferedImage(64, 64,
+            BufferedImage.TYPE_INT_ARGB);
+        Animation[] anims = new Animation[4];
+        for (int i=0; i<anims.length; i++) {
+            anims[i] = new Animation();
+            anims[i].addFrame(image, 50);
+            anims[i].addFrame(image, 50);
+        }
+        Creature host = new Fly(anims[0], anims[1], anims[2],
+            anims[3]);
+        host.setCollisionFilter(CollisionLayer.ENEMY,
+            CollisionLayer.ENEMY_MASK);
+        SpritePool pool = new SpritePool(host);
+
+        // run each way twice, and print the second, warmed up run
+        for (int run=0; run<2; run++) {
+            long startTime = System.nanoTime();
+            Sprite last = null;
+            for (int i=0; i<spawns; i++) {
+                last = (Sprite)host.clone();
+            }
+            long factoryTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            for (int i=0; i<spawns; i++) {
+                last = reflectiveClone(host, anims);
+            }
+            long reflectionTime = System.nanoTime() - startTime;
+
+            startTime = System.nanoTime();
+            for (int i=0; i<spawns; i++) {
+                last = pool.acquire();
+                pool.release(last);
+            }
+            long poolTime = System.nanoTime() - startTime;
+
+            if (run == 1 && last != null) {
+                System.out.println("factory clone:    " +
+                    format(factoryTime, spawns) + " ns/spawn");
+                System.out.println("reflective clone: " +
+                    format(reflectionTime, spawns) + " ns/spawn");
+                System.out.println("pool acquire:     " +
+                    format(poolTime, spawns) + " ns/spawn");
+            }
+        }
+    }
+
+
+    /**
+        Clones a Creature with the specified Animations the way
+        Creature.clone() did before it had factories.
+    */
+    private static Creature reflectiveClone(Creature host,
+        Animation[] anims) throws Exception
+    {
+        Constructor<?> constructor = host.getClass().getConstructors()[0];
+        Creature creature = (Creature)constructor.newInstance(
+            new Object[] {
+            (Animation)anims[0].clone(),
+            (Animation)anims[1].clone(),
+            (Animation)anims[2].clone(),
+            (Animation)anims[3].clone()
+        });
+        creature.setCollisionFilter(host.getCollisionLayer(),
+            host.getCollisionMask());
+        return creature;
+    }
+
+
+    private static String format(long time, long count) {
+        return String.valueOf(Math.round(time * 10.0 / count) /
+            10.0);
+    }
+}
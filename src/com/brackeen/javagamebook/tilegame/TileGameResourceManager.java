@@ -2,13 +2,23 @@ package com.brackeen.javagamebook.tilegame;
 
 import java.awt.*;
 import java.io.*;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import com.brackeen.javagamebook.graphics.*;
 import com.brackeen.javagamebook.tilegame.sprites.*;
 import com.brackeen.javagamebook.sound.MidiPlayer;
 import com.brackeen.javagamebook.sound.SoundManager;
+import com.brackeen.javagamebook.state.ImageLoader;
 import com.brackeen.javagamebook.state.ResourceManager;
 
 
@@ -19,8 +29,13 @@ import com.brackeen.javagamebook.state.ResourceManager;
 */
 public class TileGameResourceManager extends ResourceManager {
 
-    private ArrayList tiles;
-    private int currentMap;
+    // images loaded so far, by name, shared with every copy of
+    // this manager
+    private HashMap images;
+
+    // tile images and flags, by tile ID. The tile for map
+    // character 'A' has ID 1, 'B' has ID 2, and so on.
+    private TilePalette tiles;
 
     // host sprites used for cloning
     private Sprite playerSprite;
@@ -31,8 +46,53 @@ public class TileGameResourceManager extends ResourceManager {
     private Sprite explodeSprite;
     private Sprite grubSprite;
     private Sprite flySprite;
-    private Sprite bulletSprite;
-    private Sprite enemyBulletSprite;
+
+    // image shared by all bullets
+    private Image bulletImage;
+
+    // images of the player, fly and grub animations
+    private static final String[] CREATURE_IMAGES = {
+        "trump1.png", "trump1.png", "trump1.png",
+        "fly1.png", "fly2.png", "fly3.png",
+        "hillary.png", "hillary.png"
+    };
+
+    // images loadPowerUpSprites() uses
+    private static final String[] POWER_UP_IMAGES = {
+        "heart1.png", "heart2.png", "heart3.png",
+        "star1.png", "star2.png", "star3.png", "star4.png",
+        "tile_I.png",
+        "music1.png", "music2.png", "music3.png",
+        "email.png"
+    };
+
+    // pools of unused sprites, by sprite class
+    private HashMap pools;
+
+    // pools of the sprites placed in map files, by map character,
+    // and the map character of each sprite class
+    private SpritePool[] mapSprites;
+    private HashMap mapChars;
+
+    // parsed maps, by name, shared with every copy of this
+    // manager
+    private HashMap templates;
+
+    /**
+        The width, in tiles, from which maps are streamed by
+        default.
+    */
+    public static final int DEFAULT_STREAM_WIDTH = 512;
+
+    // maps at least this many tiles wide are streamed (see
+    // ChunkStreamer)
+    private int streamWidth = DEFAULT_STREAM_WIDTH;
+
+    // the next map, being loaded in the background by a copy of
+    // this manager that is kept for every prefetch
+    private TileGameResourceManager prefetchResources;
+    private NextMapLoader prefetch;
+    private Future prefetchResult;
 
     
     //    Creates a new ResourceManager with the specified
@@ -42,58 +102,455 @@ public class TileGameResourceManager extends ResourceManager {
         SoundManager soundManager, MidiPlayer midiPlayer)
     {
         super(gc, soundManager, midiPlayer);
+        images = new HashMap();
+        templates = new HashMap();
     }
 
 
+    /**
+        Creates a new TileGameResourceManager that shares the
+        images and "host" Sprites already loaded by the specified
+        one, but has its own pools, so each can load maps on a
+        different thread. Sounds aren't loaded.
+    */
+    public TileGameResourceManager(TileGameResourceManager shared,
+        GraphicsConfiguration gc)
+    {
+        super(gc, null, null);
+        images = shared.images;
+        templates = shared.templates;
+        tiles = shared.tiles;
+        playerSprite = shared.playerSprite;
+        musicSprite = shared.musicSprite;
+        coinSprite = shared.coinSprite;
+        goalSprite = shared.goalSprite;
+        gasSprite = shared.gasSprite;
+        explodeSprite = shared.explodeSprite;
+        grubSprite = shared.grubSprite;
+        flySprite = shared.flySprite;
+        bulletImage = shared.bulletImage;
+    }
+
+
+    /**
+        Loads the tile images and "host" Sprites, unless they are
+        shared with another manager, and creates the pools.
+    */
     public void loadResources() {
-        loadTileImages();
-        loadCreatureSprites();
-        loadPowerUpSprites();
+        if (tiles == null) {
+            // decode on an ImageLoader, this manager's own if it
+            // wasn't given one
+            ImageLoader loader = getImageLoader();
+            boolean ownLoader = (loader == null);
+            if (ownLoader) {
+                loader = new ImageLoader(this);
+                setImageLoader(loader);
+            }
+            try {
+                // queue every image before waiting on any, so they
+                // all decode at once
+                queueImages(loader);
+                loadTileImages();
+                loadCreatureSprites();
+                loadPowerUpSprites();
+            }
+            finally {
+                if (ownLoader) {
+                    setImageLoader(null);
+                    loader.close();
+                }
+            }
+        }
+        createPools();
+    }
+
+
+    /**
+        Gets an image from the images/ directory. Each image is
+        only loaded once.
+    */
+    public Image loadImage(String name, int transform) {
+        String key = name + "/" + transform;
+        synchronized (images) {
+            Image image = (Image)images.get(key);
+            if (image != null) {
+                return image;
+            }
+        }
+        // decode without holding the lock, so other threads can
+        // get images meanwhile
+        Image image = super.loadImage(name, transform);
+        synchronized (images) {
+            Image loaded = (Image)images.get(key);
+            if (loaded != null) {
+                return loaded;
+            }
+            images.put(key, image);
+            return image;
+        }
+    }
+
+
+    private void queueImages(ImageLoader loader) {
+        ArrayList tileNames = getTileImageNames();
+        for (int i=0; i<tileNames.size(); i++) {
+            loader.load((String)tileNames.get(i));
+        }
+        for (int i=0; i<CREATURE_IMAGES.length; i++) {
+            loader.load(CREATURE_IMAGES[i]);
+            loader.load(CREATURE_IMAGES[i], ImageLoader.MIRROR);
+            loader.load(CREATURE_IMAGES[i], ImageLoader.FLIP);
+            loader.load(CREATURE_IMAGES[i],
+                ImageLoader.MIRROR | ImageLoader.FLIP);
+        }
+        for (int i=0; i<POWER_UP_IMAGES.length; i++) {
+            loader.load(POWER_UP_IMAGES[i]);
+        }
+    }
+
+
+    private void createPools() {
+        Sprite[] hostSprites = { playerSprite, musicSprite,
+            coinSprite, goalSprite, gasSprite, explodeSprite,
+            grubSprite, flySprite };
+        pools = new HashMap();
+        for (int i=0; i<hostSprites.length; i++) {
+            pools.put(hostSprites[i].getClass(),
+                new SpritePool(hostSprites[i]));
+        }
+
+        // the sprites that can be placed in a map
+        mapSprites = new SpritePool[128];
+        mapChars = new HashMap();
+        registerMapSprite('o', coinSprite);
+        registerMapSprite('!', musicSprite);
+        registerMapSprite('*', goalSprite);
+        registerMapSprite('1', grubSprite);
+        registerMapSprite('2', flySprite);
+        registerMapSprite('X', explodeSprite);
+        registerMapSprite('Y', gasSprite);
+    }
+
+
+    /**
+        Registers the "host" Sprite created for the specified
+        character in a map file. A map being prefetched is
+        dropped, since it was parsed without it.
+    */
+    public void registerMapSprite(char ch, Sprite hostSprite) {
+        mapSprites[ch] = (SpritePool)pools.get(hostSprite.getClass());
+        if (!mapChars.containsKey(hostSprite.getClass())) {
+            mapChars.put(hostSprite.getClass(), Character.valueOf(ch));
+        }
+        if (prefetchResources != null) {
+            discardPrefetch();
+            prefetchResources.registerMapSprite(ch, hostSprite);
+        }
+    }
+
+
+    /**
+        Registers the same map characters as the specified
+        manager, with this manager's pools.
+    */
+    private void copyMapSprites(TileGameResourceManager other) {
+        for (int ch=0; ch<mapSprites.length; ch++) {
+            SpritePool pool = other.mapSprites[ch];
+            if (pool != null) {
+                pool = (SpritePool)pools.get(
+                    pool.getHostSprite().getClass());
+            }
+            mapSprites[ch] = pool;
+        }
+        mapChars = new HashMap(other.mapChars);
+    }
+
+
+    /**
+        Gets the pool of the Sprites placed by the specified
+        character in a map file, or null if the character isn't
+        a Sprite.
+    */
+    SpritePool getMapSpritePool(char ch) {
+        return (ch < mapSprites.length)?mapSprites[ch]:null;
+    }
+
+
+    /**
+        Gets a character that places a Sprite of the same kind as
+        the specified Sprite in a map file, or 0 if there isn't
+        one.
+    */
+    char getMapChar(Sprite sprite) {
+        Character ch = (Character)mapChars.get(sprite.getClass());
+        return (ch != null)?ch.charValue():0;
+    }
+
+
+    /**
+        Sets the width, in tiles, from which maps are streamed:
+        loaded a few chunks at a time as the camera moves (see
+        ChunkStreamer), instead of all at once. 0 streams every
+        map, and Integer.MAX_VALUE none. The default is
+        DEFAULT_STREAM_WIDTH, so only long maps are streamed.
+    */
+    public void setStreamWidth(int streamWidth) {
+        this.streamWidth = streamWidth;
     }
 
 
-    public TileMap loadNextMap() {
-        TileMap map = null;
-        if(!GameManager.mapflag) {
-            System.out.println("1");
-            while (map == null) {
-                currentMap++;
+    /**
+        Gets the width, in tiles, from which maps are streamed.
+    */
+    public int getStreamWidth() {
+        return streamWidth;
+    }
+
+
+    /**
+        Gets a Sprite of the same kind as the specified "host"
+        Sprite, reusing a released one if there is one.
+    */
+    public Sprite acquireSprite(Sprite hostSprite) {
+        return ((SpritePool)pools.get(hostSprite.getClass())).acquire();
+    }
+
+
+    /**
+        Returns a Sprite that was removed from its map to its
+        pool, so it can be acquired again.
+    */
+    public void releaseSprite(Sprite sprite) {
+        SpritePool pool = (SpritePool)pools.get(sprite.getClass());
+        if (pool != null) {
+            pool.release(sprite);
+        }
+    }
+
+
+    /**
+        Releases the player and all the Sprites of a map that is
+        no longer used, and removes them from the map.
+    */
+    public void releaseMap(TileMap map) {
+        if (map.getStreamer() != null) {
+            map.getStreamer().close();
+        }
+        for (int i=0; i<map.getNumSprites(); i++) {
+            releaseSprite(map.getSprite(i));
+        }
+        map.removeAllSprites();
+        releaseSprite(map.getPlayer());
+    }
+
+
+    /**
+        Loads the next map of the specified GameSession: the map
+        chosen for the session, or the map after its current map
+        if the maps are played in order. If the map was prefetched
+        (see prefetchNextMap()), it is used as is, waiting for it
+        if it isn't ready yet.
+    */
+    public TileMap loadNextMap(GameSession session) {
+        NextMapLoader loader = prefetch;
+        if (loader != null && loader.isFor(session)) {
+            TileMap map = finishPrefetch();
+            if (map != null) {
+                loader.apply(session);
+                usePrefetchedMap(map);
+                return map;
+            }
+        }
+        else {
+            discardPrefetch();
+        }
+
+        loader = new NextMapLoader(this, session);
+        TileMap map = (TileMap)loader.call();
+        if (map != null) {
+            loader.apply(session);
+        }
+        return map;
+    }
+
+
+    /**
+        Starts loading the next map of the specified GameSession
+        in the background, so loadNextMap() can return it without
+        a pause. The map is loaded by a copy of this manager with
+        its own pools, so the pools of this one can still be used
+        on the game thread meanwhile. Does nothing if the next map
+        is already being prefetched. If a different map is being
+        prefetched, waits for it and drops it first.
+    */
+    public void prefetchNextMap(GameSession session) {
+        if (prefetch != null && prefetch.isFor(session)) {
+            return;
+        }
+        discardPrefetch();
+        if (prefetchResources == null) {
+            prefetchResources = new TileGameResourceManager(this,
+                getGraphicsConfiguration());
+            prefetchResources.loadResources();
+            prefetchResources.copyMapSprites(this);
+        }
+        prefetchResources.setStreamWidth(streamWidth);
+        prefetch = new NextMapLoader(prefetchResources, session);
+        prefetchResult = ForkJoinPool.commonPool().submit(prefetch);
+    }
+
+
+    /**
+        Waits for the map being prefetched, if any, and returns
+        it, or null if there is none or it couldn't be loaded.
+    */
+    private TileMap finishPrefetch() {
+        if (prefetch == null) {
+            return null;
+        }
+        prefetch = null;
+        try {
+            return (TileMap)prefetchResult.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            // the prefetch may still be running, so its manager
+            // can't be used again
+            prefetchResources = null;
+        }
+        catch (ExecutionException ex) {
+            ex.printStackTrace();
+        }
+        return null;
+    }
+
+
+    /**
+        Drops the map being prefetched, if any, returning its
+        Sprites to the pools they came from. The prefetch is
+        waited for, since it uses those pools until it's done.
+    */
+    private void discardPrefetch() {
+        TileMap map = finishPrefetch();
+        if (map != null && prefetchResources != null) {
+            prefetchResources.releaseMap(map);
+        }
+    }
+
+
+    /**
+        Takes over a map loaded by the prefetch manager. Its
+        Sprites came from the prefetch manager's pools, so the
+        pools of the two managers are swapped: Sprites of the map
+        are released to the pools they came from, and the
+        Sprites of the old map, already released to this
+        manager's pools, are reused by the next prefetch. Each
+        set of pools only ever holds about one map's Sprites.
+    */
+    private void usePrefetchedMap(TileMap map) {
+        HashMap swapPools = pools;
+        pools = prefetchResources.pools;
+        prefetchResources.pools = swapPools;
+        SpritePool[] swapMapSprites = mapSprites;
+        mapSprites = prefetchResources.mapSprites;
+        prefetchResources.mapSprites = swapMapSprites;
+        if (map.getStreamer() != null) {
+            map.getStreamer().setResources(this);
+        }
+    }
+
+
+    /**
+        Checks if the next map of the specified GameSession is
+        being prefetched, or is ready.
+    */
+    public boolean isPrefetching(GameSession session) {
+        return prefetch != null && prefetch.isFor(session);
+    }
+
+
+    /**
+        Loads the map that comes after the current map of a
+        GameSession, as it was when the loader was created.
+    */
+    private static class NextMapLoader implements Callable {
+
+        private TileGameResourceManager resources;
+        private String mapName;
+        private int currentMap;
+        private int nextMap;
+
+        public NextMapLoader(TileGameResourceManager resources,
+            GameSession session)
+        {
+            this.resources = resources;
+            mapName = session.getMapName();
+            currentMap = session.getCurrentMap();
+        }
+
+
+        /**
+            Loads the map, or returns null if there are no maps.
+        */
+        public Object call() {
+            if (mapName != null) {
+                try {
+                    return resources.loadMap("maps/map" + mapName);
+                }
+                catch (IOException ex) {
+                    return null;
+                }
+            }
+            nextMap = currentMap;
+            while (true) {
+                nextMap++;
                 try {
-                    map = loadMap(
-                            "maps/map" + currentMap + ".txt");
-                } catch (IOException ex) {
-                    if (currentMap == 1) {
+                    return resources.loadMap("maps/map" + nextMap);
+                }
+                catch (IOException ex) {
+                    if (nextMap == 1) {
                         // no maps to load!
                         return null;
                     }
-                    currentMap = 0;
-                    map = null;
+                    nextMap = 0;
                 }
             }
         }
-        else {
-            System.out.println(GameManager.mapname);
-            try {
-                map = loadMap(
-                        "maps/map" + GameManager.mapname + ".txt");
-                return map;
-            } catch (IOException ex) {
-                if (currentMap == 1) {
-                    // no maps to load!
-                    return null;
-                }
-                map = null;
+
+
+        /**
+            Checks if this loader loads the next map of the
+            specified GameSession.
+        */
+        public boolean isFor(GameSession session) {
+            String name = session.getMapName();
+            return currentMap == session.getCurrentMap() &&
+                ((name == null)?mapName == null:name.equals(mapName));
+        }
+
+
+        /**
+            Makes the loaded map the current map of the specified
+            GameSession.
+        */
+        public void apply(GameSession session) {
+            if (mapName == null) {
+                session.setCurrentMap(nextMap);
             }
         }
-        return map;
     }
 
 
-    public TileMap reloadMap() {
+    /**
+        Loads the current map of the specified GameSession again.
+    */
+    public TileMap reloadMap(GameSession session) {
         try {
-            System.out.println("here" + currentMap);
-            return loadMap(
-                "maps/map" + GameManager.mapname + ".txt");
+            String name = session.getMapName();
+            if (name == null) {
+                name = String.valueOf(session.getCurrentMap());
+            }
+            return loadMap("maps/map" + name);
         }
         catch (IOException ex) {
             ex.printStackTrace();
@@ -102,127 +559,272 @@ public class TileGameResourceManager extends ResourceManager {
     }
 
 
-    private TileMap loadMap(String filename)
-        throws IOException
-    {
-        ArrayList lines = new ArrayList();
-        int width = 0;
-        int height = 0;
+    /**
+        Loads the map with the specified name (without an
+        extension), from its binary map file if there is one (see
+        MapCompiler), or else from its text map file. Maps at
+        least as wide as the stream width are streamed. Other
+        maps are only parsed once: their MapTemplate is kept, and
+        later loads create the map from it.
+    */
+    private TileMap loadMap(String name) throws IOException {
+        MapTemplate template;
+        synchronized (templates) {
+            template = (MapTemplate)templates.get(name);
+        }
+        if (template == null) {
+            ByteBuffer buffer = readBinaryMap(name);
+            // streamed maps read the map file as they go, so
+            // they have no template
+            if (buffer.getInt(8) >= streamWidth) {
+                return loadStreamedMap(buffer);
+            }
+            template = parseBinaryMap(buffer);
+            synchronized (templates) {
+                templates.put(name, template);
+            }
+        }
+        return createMap(template);
+    }
+
 
-        ClassLoader classLoader = getClass().getClassLoader();
-        URL url = classLoader.getResource(filename);
-        if (url == null) {
-            throw new IOException("No such map: " + filename);
+    /**
+        Creates a map from a MapTemplate. The map shares the
+        template's tile IDs, and its Sprites come from the pools.
+    */
+    private TileMap createMap(MapTemplate template) {
+        TileMap newMap = new TileMap(template.getWidth(),
+            template.getHeight(), tiles, false);
+        for (int i=0; i<newMap.getNumChunks(); i++) {
+            newMap.loadChunk(i, template.getChunkTiles(i), true);
         }
 
-        // read every line in the text file into the list
-        BufferedReader reader = new BufferedReader(
-            new InputStreamReader(url.openStream()));
-        while (true) {
-            String line = reader.readLine();
-            // no more lines to read
-            if (line == null) {
-                reader.close();
-                break;
+        // make sure the pools have enough sprites first, so they
+        // create them all at once
+        for (char ch=0; ch<mapSprites.length; ch++) {
+            int count = template.getSpawnCount(ch);
+            if (count > 0) {
+                mapSprites[ch].reserve(count);
             }
+        }
+        for (int i=0; i<template.getNumSpawns(); i++) {
+            addSprite(newMap, mapSprites[template.getSpawnChar(i)],
+                template.getSpawnX(i), template.getSpawnY(i));
+        }
+
+        addPlayer(newMap);
+        return newMap;
+    }
 
-            // add every line except for comments
-            if (!line.startsWith("#")) {
-                lines.add(line);
-                width = Math.max(width, line.length());
+
+    /**
+        Reads the binary map file with the specified name
+        (without an extension) and checks its header and size.
+        Files on disk are memory-mapped. If there is no binary
+        map file, the text map file is compiled in memory. The
+        returned buffer is positioned at the start of the file.
+    */
+    private ByteBuffer readBinaryMap(String name) throws IOException {
+        ByteBuffer buffer;
+        URL url = getResource(name + ".map");
+        if (url != null) {
+            buffer = readResource(url);
+        }
+        else {
+            url = getResource(name + ".txt");
+            if (url == null) {
+                throw new IOException("No such map: " + name);
+            }
+            Reader in = new InputStreamReader(url.openStream());
+            try {
+                buffer = ByteBuffer.wrap(MapCompiler.compile(in));
+            }
+            finally {
+                in.close();
             }
         }
 
-        // parse the lines to create a TileEngine
-        height = lines.size();
-        TileMap newMap = new TileMap(width, height);
-        for (int y=0; y<height; y++) {
-            String line = (String)lines.get(y);
-            for (int x=0; x<line.length(); x++) {
-                char ch = line.charAt(x);
+        if (buffer.remaining() < MapCompiler.HEADER_SIZE ||
+            buffer.getInt(0) != MapCompiler.MAGIC ||
+            buffer.getInt(4) != MapCompiler.VERSION)
+        {
+            throw new IOException("Not a map file: " + url);
+        }
+        int width = buffer.getInt(8);
+        int height = buffer.getInt(12);
+        int numSpawns = buffer.getInt(16);
+        if (buffer.remaining() != MapCompiler.HEADER_SIZE +
+            width * height * 2 + numSpawns * MapCompiler.SPAWN_SIZE)
+        {
+            throw new IOException("Bad map file size: " + url);
+        }
+        return buffer;
+    }
 
-                // check if the char represents tile A, B, C etc.
-                int tile = ch - 'A';
-                if (tile >= 0 && tile < tiles.size()) {
-                    newMap.setTile(x, y, (Image)tiles.get(tile));
-                }
 
-                // check if the char represents a sprite
-                else if (ch == 'o') {
-                    addSprite(newMap, coinSprite, x, y);
-                }
-                else if (ch == '!') {
-                    addSprite(newMap, musicSprite, x, y);
-                }
-                else if (ch == '*') {
-                    addSprite(newMap, goalSprite, x, y);
-                }
-                else if (ch == '1') {
-                    addSprite(newMap, grubSprite, x, y);
-                }
-                else if (ch == '2') {
-                    addSprite(newMap, flySprite, x, y);
-                }
-                else if (ch == 'X') {
-                    addSprite(newMap, explodeSprite, x, y);
-                }
-                else if (ch == 'Y') {
-                    addSprite(newMap, gasSprite, x, y);
-                }
+    /**
+        Parses a binary map file. The tile IDs are copied in one
+        go, so only the spawn table is looked at one by one.
+    */
+    private MapTemplate parseBinaryMap(ByteBuffer buffer) {
+        int width = buffer.getInt(8);
+        int height = buffer.getInt(12);
+        int numSpawns = buffer.getInt(16);
+        buffer.position(MapCompiler.HEADER_SIZE);
+
+        TileMap newMap = new TileMap(width, height, tiles);
+        ShortBuffer ids = buffer.asShortBuffer();
+        ids.limit(width * height);
+        newMap.setTileIds(ids);
+        buffer.position(buffer.position() + width * height * 2);
+
+        // keep the spawns of known sprites (spawns on a tile are
+        // letters used as tiles)
+        int[] spawns = new int[numSpawns * 3];
+        int count = 0;
+        for (int i=0; i<numSpawns; i++) {
+            int x = buffer.getInt();
+            int y = buffer.getInt();
+            char ch = buffer.getChar();
+            if (ch < mapSprites.length && mapSprites[ch] != null &&
+                newMap.getTileId(x, y) == TilePalette.EMPTY)
+            {
+                spawns[count * 3] = x;
+                spawns[count * 3 + 1] = y;
+                spawns[count * 3 + 2] = ch;
+                count++;
             }
         }
+        return new MapTemplate(newMap, spawns, count);
+    }
 
-        // add the player to the map
-        Sprite player = (Sprite)playerSprite.clone();
-        player.setX(TileMapRenderer.tilesToPixels(3));
-        player.setY(0);
-        newMap.setPlayer(player);
 
+    /**
+        Creates a streamed map from a binary map file, with only
+        the chunks around the player's start loaded.
+    */
+    private TileMap loadStreamedMap(ByteBuffer buffer)
+        throws IOException
+    {
+        TileMap newMap = new TileMap(buffer.getInt(8),
+            buffer.getInt(12), tiles, false);
+        ChunkStreamer streamer = new ChunkStreamer(this, newMap,
+            buffer);
+        newMap.setStreamer(streamer);
+        addPlayer(newMap);
+        int chunk = newMap.getChunk(newMap.getPlayer().getX());
+        streamer.update(chunk, chunk);
         return newMap;
     }
 
 
-    private void addSprite(TileMap map,
-        Sprite hostSprite, int tileX, int tileY)
-    {
-        if (hostSprite != null) {
-            // clone the sprite from the "host"
-            Sprite sprite = (Sprite)hostSprite.clone();
-
-            // center the sprite
-            sprite.setX(
-                TileMapRenderer.tilesToPixels(tileX) +
-                (TileMapRenderer.tilesToPixels(1) -
-                sprite.getWidth()) / 2);
-
-            // bottom-justify the sprite
-            sprite.setY(
-                TileMapRenderer.tilesToPixels(tileY + 1) -
-                sprite.getHeight());
-
-            // add it to the map
-            map.addSprite(sprite);
+    /**
+        Gets the contents of a resource. Files on disk are
+        memory-mapped; anything else (like a resource in a jar)
+        is read into memory.
+    */
+    private ByteBuffer readResource(URL url) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            File file;
+            try {
+                file = new File(url.toURI());
+            }
+            catch (URISyntaxException ex) {
+                throw new IOException(ex.toString());
+            }
+            FileChannel channel =
+                new RandomAccessFile(file, "r").getChannel();
+            try {
+                // the mapping stays valid after the channel closes
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            }
+            finally {
+                channel.close();
+            }
+        }
+
+        InputStream in = url.openStream();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            int count;
+            while ((count = in.read(chunk)) != -1) {
+                out.write(chunk, 0, count);
+            }
+            return ByteBuffer.wrap(out.toByteArray());
+        }
+        finally {
+            in.close();
         }
     }
 
-    public Sprite getBullet(){
-        return bulletSprite;
+
+    /**
+        Adds the player and an empty ProjectileSystem to a newly
+        loaded map.
+    */
+    private void addPlayer(TileMap map) {
+        Sprite player = acquireSprite(playerSprite);
+        player.setX(TileMapRenderer.tilesToPixels(3));
+        player.setY(0);
+        map.setPlayer(player);
+        map.setProjectiles(new ProjectileSystem(bulletImage));
     }
 
-    public Sprite getEnemyBullet(){
-        return enemyBulletSprite;
+
+    void addSprite(TileMap map,
+        SpritePool pool, int tileX, int tileY)
+    {
+        // take a sprite cloned from the "host"
+        Sprite sprite = pool.acquire();
+
+        // center the sprite, but keep it in the chunk of its tile:
+        // a sprite wider than a tile in the first column of a
+        // chunk would stick out into the chunk before, which a
+        // streamed map may not have loaded
+        int chunkLeft = TileMapRenderer.tilesToPixels(
+            tileX - tileX % TileMap.CHUNK_TILES);
+        sprite.setX(Math.max(chunkLeft,
+            TileMapRenderer.tilesToPixels(tileX) +
+            (TileMapRenderer.tilesToPixels(1) -
+            sprite.getWidth()) / 2));
+
+        // bottom-justify the sprite
+        sprite.setY(
+            TileMapRenderer.tilesToPixels(tileY + 1) -
+            sprite.getHeight());
+
+        // add it to the map, keeping pickups apart
+        if (sprite instanceof PowerUp) {
+            map.addPickup(sprite);
+        }
+        else {
+            map.addSprite(sprite);
+        }
     }
 
 
+
     // -----------------------------------------------------------
     // code for loading sprites and images
     // -----------------------------------------------------------
 
 
     public void loadTileImages() {
+        tiles = new TilePalette();
+        ArrayList names = getTileImageNames();
+        for (int i=0; i<names.size(); i++) {
+            tiles.add(loadImage((String)names.get(i)),
+                TilePalette.SOLID);
+        }
+    }
+
+
+    private ArrayList getTileImageNames() {
         // keep looking for tile A,B,C, etc. this makes it
         // easy to drop new tiles in the images/ directory
-        tiles = new ArrayList();
+        ArrayList names = new ArrayList();
         char ch = 'A';
         while (true) {
             String name = "tile_" + ch + ".png";
@@ -231,38 +833,27 @@ public class TileGameResourceManager extends ResourceManager {
             if (url == null) {
                 break;
             }
-            tiles.add(loadImage(name));
+            names.add(name);
             ch++;
         }
+        return names;
     }
 
 
     public void loadCreatureSprites() {
 
-        Image[][] images = new Image[4][];
-
-        // load left-facing images
-        images[0] = new Image[] {
-            loadImage("trump1.png"),
-            loadImage("trump1.png"),
-            loadImage("trump1.png"),
-            loadImage("fly1.png"),
-            loadImage("fly2.png"),
-            loadImage("fly3.png"),
-            loadImage("hillary.png"),
-            loadImage("hillary.png"),
-        };
-
-        images[1] = new Image[images[0].length];
-        images[2] = new Image[images[0].length];
-        images[3] = new Image[images[0].length];
-        for (int i=0; i<images[0].length; i++) {
+        Image[][] images = new Image[4][CREATURE_IMAGES.length];
+        for (int i=0; i<CREATURE_IMAGES.length; i++) {
+            String name = CREATURE_IMAGES[i];
+            // left-facing images
+            images[0][i] = loadImage(name);
             // right-facing images
-            images[1][i] = getMirrorImage(images[0][i]);
+            images[1][i] = loadImage(name, ImageLoader.MIRROR);
             // left-facing "dead" images
-            images[2][i] = getFlippedImage(images[0][i]);
+            images[2][i] = loadImage(name, ImageLoader.FLIP);
             // right-facing "dead" images
-            images[3][i] = getFlippedImage(images[1][i]);
+            images[3][i] = loadImage(name,
+                ImageLoader.MIRROR | ImageLoader.FLIP);
         }
 
         // create creature animations
@@ -285,6 +876,14 @@ public class TileGameResourceManager extends ResourceManager {
             flyAnim[2], flyAnim[3]);
         grubSprite = new Grub(grubAnim[0], grubAnim[1],
             grubAnim[2], grubAnim[3]);
+
+        // set up collision layers
+        playerSprite.setCollisionFilter(CollisionLayer.PLAYER,
+            CollisionLayer.PLAYER_MASK);
+        flySprite.setCollisionFilter(CollisionLayer.ENEMY,
+            CollisionLayer.ENEMY_MASK);
+        grubSprite.setCollisionFilter(CollisionLayer.ENEMY,
+            CollisionLayer.ENEMY_MASK);
     }
 
 
@@ -341,12 +940,12 @@ public class TileGameResourceManager extends ResourceManager {
 
         // create "Gas" sprite
         anim = new Animation();
-        anim.addFrame(loadImage("Tile_I.png"), 150);
+        anim.addFrame(loadImage("tile_I.png"), 150);
         gasSprite = new PowerUp.Gas(anim);
 
         // create "Explode" sprite
         anim = new Animation();
-        anim.addFrame(loadImage("Tile_I.png"), 100);
+        anim.addFrame(loadImage("tile_I.png"), 100);
         explodeSprite = new PowerUp.Explode(anim);
 
         // create "music" sprite
@@ -357,16 +956,16 @@ public class TileGameResourceManager extends ResourceManager {
         anim.addFrame(loadImage("music2.png"), 150);
         musicSprite = new PowerUp.Music(anim);
 
-        // create bullet
-        anim = new Animation();
-        Image bullImage = loadImage("email.png");
-        anim.addFrame(bullImage, 150);
-        bulletSprite = new Bullet(anim, anim, anim, anim);
+        // load the bullet image
+        bulletImage = loadImage("email.png");
 
-        // create bullet
-        anim = new Animation();
-        anim.addFrame(bullImage, 150);
-        enemyBulletSprite = new EnemyBullet(anim, anim, anim, anim);
+        // set up collision layers
+        Sprite[] powerUps = { goalSprite, coinSprite, gasSprite,
+            explodeSprite, musicSprite };
+        for (int i=0; i<powerUps.length; i++) {
+            powerUps[i].setCollisionFilter(CollisionLayer.POWERUP,
+                CollisionLayer.POWERUP_MASK);
+        }
     }
 
 }
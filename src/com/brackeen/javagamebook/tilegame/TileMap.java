@@ -1,32 +1,175 @@
 package com.brackeen.javagamebook.tilegame;
 
 import java.awt.Image;
-import java.util.LinkedList;
-import java.util.Iterator;
+import java.nio.ShortBuffer;
 
 import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.graphics.SpriteStore;
 
 /**
     The TileMap class contains the data for a tile-based
-    map, including Sprites. Each tile is a reference to an
-    Image. Of course, Images are used multiple times in the tile
-    map.
+    map, including Sprites. Each tile is a short ID, and a
+    TilePalette maps IDs to Images and flags. The IDs of each
+    chunk (see below) are kept in one array, row by row, so
+    drawing and collision walk memory in order.
+
+    <p>Sprites are also indexed by chunk, a strip of CHUNK_TILES
+    tile columns, so the Sprites near a position on the map can
+    be found without looking at every Sprite. Each chunk keeps
+    the position, velocity, state and type of its Sprites in a
+    SpriteStore.
+
+    <p>Pickups (PowerUps) never move, so each chunk keeps them in
+    a second SpriteStore, built when the map is loaded. The
+    chunks' Sprite stores only hold Creatures.
+
+    <p>A map can be streamed (see ChunkStreamer): its chunks start
+    unloaded and are loaded and unloaded as the camera moves. An
+    unloaded chunk has no tiles and no Sprites.
+
+    <p>Sprites can be queued to be added or removed while the
+    game is walking over them. The queued changes are made
+    together by applyChanges(), once per update.
 */
 public class TileMap {
 
-    private Image[][] tiles;
-    private LinkedList sprites;
+    /**
+        The number of tile columns in a chunk.
+    */
+    public static final int CHUNK_TILES = 8;
+
+    // tile IDs of each chunk, or null if it isn't loaded, and
+    // whether they are shared and must be copied before a change
+    private short[][] tiles;
+    private boolean[] sharedTiles;
+    private int width;
+    private int height;
+    private TilePalette palette;
+    private SpriteList sprites;
+    private SpriteStore[] chunks;
+    private SpriteStore[] pickupChunks;
     private Sprite player;
-    private LinkedList buffer_list;
+    private ProjectileSystem projectiles;
+    private ChunkStreamer streamer;
+
+    // queued changes, and the sprites removed by the last
+    // applyChanges()
+    private Sprite[] queuedAdds = new Sprite[16];
+    private int numQueuedAdds;
+    private Sprite[] queuedRemoves = new Sprite[16];
+    private int numQueuedRemoves;
+    private Sprite[] removed = new Sprite[16];
+    private int numRemoved;
+
+    // the stores of unloaded chunks, always empty
+    private static final SpriteStore EMPTY_STORE = new SpriteStore();
+
+    /**
+        Creates a new, empty TileMap with the specified width and
+        height (in number of tiles) of the map, whose tile IDs
+        are from the specified TilePalette.
+    */
+    public TileMap(int width, int height, TilePalette palette) {
+        this(width, height, palette, true);
+    }
+
+
+    /**
+        Creates a new, empty TileMap with the specified width and
+        height (in number of tiles) of the map, whose tile IDs
+        are from the specified TilePalette. If loaded is false,
+        every chunk starts unloaded.
+    */
+    public TileMap(int width, int height, TilePalette palette,
+        boolean loaded)
+    {
+        this.width = width;
+        this.height = height;
+        this.palette = palette;
+        sprites = new SpriteList();
+        int numChunks = (width + CHUNK_TILES - 1) / CHUNK_TILES;
+        tiles = new short[numChunks][];
+        sharedTiles = new boolean[numChunks];
+        chunks = new SpriteStore[numChunks];
+        pickupChunks = new SpriteStore[numChunks];
+        if (loaded) {
+            for (int i=0; i<numChunks; i++) {
+                loadChunk(i, new short[CHUNK_TILES * height]);
+            }
+        }
+    }
+
+
+    /**
+        Loads a chunk with the specified tile IDs (CHUNK_TILES
+        per row, row by row) and no Sprites.
+    */
+    public void loadChunk(int chunk, short[] ids) {
+        loadChunk(chunk, ids, false);
+    }
+
+
+    /**
+        Loads a chunk with the specified tile IDs (CHUNK_TILES
+        per row, row by row) and no Sprites. If shared is true,
+        the IDs may be used by other maps too (see MapTemplate),
+        so they are copied before a tile is changed.
+    */
+    public void loadChunk(int chunk, short[] ids, boolean shared) {
+        tiles[chunk] = ids;
+        sharedTiles[chunk] = shared;
+        chunks[chunk] = new SpriteStore();
+        pickupChunks[chunk] = new SpriteStore();
+    }
+
+
+    /**
+        Unloads a chunk: drops its tiles and removes its Sprites
+        from this map. Whoever unloads the chunk should keep or
+        release its Sprites first.
+    */
+    public void unloadChunk(int chunk) {
+        if (!isChunkLoaded(chunk)) {
+            return;
+        }
+        unloadAll(chunks[chunk]);
+        unloadAll(pickupChunks[chunk]);
+        tiles[chunk] = null;
+        sharedTiles[chunk] = false;
+        chunks[chunk] = null;
+        pickupChunks[chunk] = null;
+    }
+
+
+    private void unloadAll(SpriteStore store) {
+        while (store.size() > 0) {
+            removeSprite(store.getSprite(store.size() - 1));
+        }
+    }
+
+
+    /**
+        Checks if a chunk is loaded.
+    */
+    public boolean isChunkLoaded(int chunk) {
+        return tiles[chunk] != null;
+    }
+
+
+    /**
+        Gets the ChunkStreamer that loads the chunks of this map,
+        or null if the map isn't streamed.
+    */
+    public ChunkStreamer getStreamer() {
+        return streamer;
+    }
+
 
     /**
-        Creates a new TileMap with the specified width and
-        height (in number of tiles) of the map.
+        Sets the ChunkStreamer that loads the chunks of this map.
     */
-    public TileMap(int width, int height) {
-        tiles = new Image[width][height];
-        sprites = new LinkedList();
-        buffer_list = new LinkedList();
+    public void setStreamer(ChunkStreamer streamer) {
+        this.streamer = streamer;
     }
 
 
@@ -34,7 +177,7 @@ public class TileMap {
         Gets the width of this TileMap (number of tiles across).
     */
     public int getWidth() {
-        return tiles.length;
+        return width;
     }
 
 
@@ -42,32 +185,120 @@ public class TileMap {
         Gets the height of this TileMap (number of tiles down).
     */
     public int getHeight() {
-        return tiles[0].length;
+        return height;
     }
 
 
     /**
-        Gets the tile at the specified location. Returns null if
-        no tile is at the location or if the location is out of
-        bounds.
+        Gets the TilePalette of this TileMap's tile IDs.
     */
-    public Image getTile(int x, int y) {
-        if (x < 0 || x >= getWidth() ||
-            y < 0 || y >= getHeight())
-        {
-            return null;
+    public TilePalette getPalette() {
+        return palette;
+    }
+
+
+    /**
+        Gets the ID of the tile at the specified location.
+        Returns TilePalette.EMPTY if the location is out of
+        bounds or in an unloaded chunk.
+    */
+    public short getTileId(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            return TilePalette.EMPTY;
+        }
+        short[] ids = tiles[x / CHUNK_TILES];
+        if (ids == null) {
+            return TilePalette.EMPTY;
+        }
+        return ids[y * CHUNK_TILES + x % CHUNK_TILES];
+    }
+
+
+    /**
+        Sets the ID of the tile at the specified location, which
+        must be in a loaded chunk.
+    */
+    public void setTileId(int x, int y, short id) {
+        int chunk = x / CHUNK_TILES;
+        copySharedTiles(chunk);
+        tiles[chunk][y * CHUNK_TILES + x % CHUNK_TILES] = id;
+    }
+
+
+    /**
+        Gets the tile IDs of a loaded chunk, CHUNK_TILES per row,
+        row by row. The array should not be changed.
+    */
+    public short[] getChunkTiles(int chunk) {
+        return tiles[chunk];
+    }
+
+
+    /**
+        Makes a chunk's tile IDs this map's own, if they are
+        shared, so they can be changed.
+    */
+    private void copySharedTiles(int chunk) {
+        if (sharedTiles[chunk]) {
+            tiles[chunk] = tiles[chunk].clone();
+            sharedTiles[chunk] = false;
+        }
+    }
+
+
+    /**
+        Sets every tile ID of a fully loaded map at once, from the
+        specified buffer of the whole map, row by row. IDs that
+        aren't in the palette are made empty.
+    */
+    public void setTileIds(ShortBuffer ids) {
+        for (int c=0; c<tiles.length; c++) {
+            copySharedTiles(c);
+        }
+        for (int y=0; y<height; y++) {
+            for (int c=0; c<tiles.length; c++) {
+                int count = Math.min(CHUNK_TILES, width - c * CHUNK_TILES);
+                ids.get(tiles[c], y * CHUNK_TILES, count);
+            }
+        }
+        for (int c=0; c<tiles.length; c++) {
+            clearUnknownTiles(palette, tiles[c]);
         }
-        else {
-            return tiles[x][y];
+    }
+
+
+    /**
+        Makes every ID in the specified array that isn't in the
+        specified palette empty.
+    */
+    public static void clearUnknownTiles(TilePalette palette,
+        short[] ids)
+    {
+        int size = palette.size();
+        for (int i=0; i<ids.length; i++) {
+            if (ids[i] < 0 || ids[i] >= size) {
+                ids[i] = TilePalette.EMPTY;
+            }
         }
     }
 
 
     /**
-        Sets the tile at the specified location.
+        Gets the Image of the tile at the specified location.
+        Returns null if no tile is at the location or if the
+        location is out of bounds.
+    */
+    public Image getTile(int x, int y) {
+        return palette.getImage(getTileId(x, y));
+    }
+
+
+    /**
+        Checks if the tile at the specified location is solid.
+        Locations out of bounds are not.
     */
-    public void setTile(int x, int y, Image tile) {
-        tiles[x][y] = tile;
+    public boolean isSolid(int x, int y) {
+        return palette.isSolid(getTileId(x, y));
     }
 
 
@@ -88,37 +319,259 @@ public class TileMap {
 
 
     /**
-        Adds a Sprite object to this map.
+        Gets the bullets flying in this map.
+    */
+    public ProjectileSystem getProjectiles() {
+        return projectiles;
+    }
+
+
+    /**
+        Sets the bullets flying in this map.
+    */
+    public void setProjectiles(ProjectileSystem projectiles) {
+        this.projectiles = projectiles;
+    }
+
+
+    /**
+        Adds a Sprite object to this map. Returns the Sprite's
+        handle (see SpriteList).
+    */
+    public int addSprite(Sprite sprite) {
+        getChunkStore(getChunk(sprite.getX())).add(sprite);
+        return sprites.add(sprite);
+    }
+
+
+    /**
+        Adds a pickup to this map. Pickups never move. Returns the
+        pickup's handle (see SpriteList).
+    */
+    public int addPickup(Sprite pickup) {
+        int chunk = getChunk(pickup.getX());
+        if (pickupChunks[chunk] == null) {
+            throw new IllegalStateException("Chunk not loaded");
+        }
+        pickupChunks[chunk].add(pickup);
+        return sprites.add(pickup);
+    }
+
+
+    /**
+        Removes a Sprite object from this map. Returns false if
+        the Sprite isn't in this map.
+    */
+    public boolean removeSprite(Sprite sprite) {
+        if (!sprites.remove(sprite)) {
+            return false;
+        }
+        if (sprite.getStore() != null) {
+            sprite.getStore().remove(sprite);
+        }
+        return true;
+    }
+
+
+    /**
+        Queues a Sprite to be added to this map by the next
+        applyChanges().
+    */
+    public void queueAdd(Sprite sprite) {
+        queuedAdds = ensureCapacity(queuedAdds, numQueuedAdds + 1);
+        queuedAdds[numQueuedAdds++] = sprite;
+    }
+
+
+    /**
+        Queues a Sprite to be removed from this map by the next
+        applyChanges(). The Sprite stays in the map until then.
+    */
+    public void queueRemove(Sprite sprite) {
+        queuedRemoves = ensureCapacity(queuedRemoves,
+            numQueuedRemoves + 1);
+        queuedRemoves[numQueuedRemoves++] = sprite;
+    }
+
+
+    /**
+        Makes all the queued changes: removes the Sprites queued
+        for removal, then adds the Sprites queued to be added.
+        The Sprites that were actually removed can be found with
+        getNumRemoved() and getRemoved() until the next call.
+    */
+    public void applyChanges() {
+        for (int i=0; i<numRemoved; i++) {
+            removed[i] = null;
+        }
+        numRemoved = 0;
+        for (int i=0; i<numQueuedRemoves; i++) {
+            Sprite sprite = queuedRemoves[i];
+            queuedRemoves[i] = null;
+            if (removeSprite(sprite)) {
+                removed = ensureCapacity(removed, numRemoved + 1);
+                removed[numRemoved++] = sprite;
+            }
+        }
+        numQueuedRemoves = 0;
+        for (int i=0; i<numQueuedAdds; i++) {
+            addSprite(queuedAdds[i]);
+            queuedAdds[i] = null;
+        }
+        numQueuedAdds = 0;
+    }
+
+
+    /**
+        Gets the number of Sprites removed by the last
+        applyChanges().
+    */
+    public int getNumRemoved() {
+        return numRemoved;
+    }
+
+
+    /**
+        Gets a Sprite removed by the last applyChanges().
+    */
+    public Sprite getRemoved(int index) {
+        return removed[index];
+    }
+
+
+    /**
+        Gets the store of the Creatures in a loaded chunk.
+    */
+    private SpriteStore getChunkStore(int chunk) {
+        if (chunks[chunk] == null) {
+            throw new IllegalStateException("Chunk not loaded");
+        }
+        return chunks[chunk];
+    }
+
+
+    private Sprite[] ensureCapacity(Sprite[] array, int capacity) {
+        if (array.length >= capacity) {
+            return array;
+        }
+        Sprite[] newArray = new Sprite[Math.max(capacity,
+            array.length * 2)];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+
+
+    /**
+        Removes all Sprite objects from this map, except for the
+        player, and drops all queued changes.
+    */
+    public void removeAllSprites() {
+        for (int i=0; i<chunks.length; i++) {
+            if (isChunkLoaded(i)) {
+                removeAll(chunks[i]);
+                removeAll(pickupChunks[i]);
+            }
+        }
+        sprites.clear();
+        for (int i=0; i<numQueuedAdds; i++) {
+            queuedAdds[i] = null;
+        }
+        numQueuedAdds = 0;
+        for (int i=0; i<numQueuedRemoves; i++) {
+            queuedRemoves[i] = null;
+        }
+        numQueuedRemoves = 0;
+    }
+
+
+    private void removeAll(SpriteStore store) {
+        while (store.size() > 0) {
+            store.remove(store.getSprite(store.size() - 1));
+        }
+    }
+
+
+    /**
+        Gets the number of chunks in this map.
+    */
+    public int getNumChunks() {
+        return chunks.length;
+    }
+
+
+    /**
+        Gets the chunk that contains the specified x position (in
+        pixels). Positions off the map are clamped to the first
+        or last chunk.
+    */
+    public int getChunk(float x) {
+        int chunk = TileMapRenderer.pixelsToTiles(x) / CHUNK_TILES;
+        return Math.max(0, Math.min(chunk, chunks.length - 1));
+    }
+
+
+    /**
+        Gets the SpriteStore of the Creatures indexed in the
+        specified chunk, which is empty if the chunk isn't
+        loaded. Sprites should not be added to or removed from
+        the store directly.
     */
-    public void addSprite(Sprite sprite) {
-        sprites.add(sprite);
+    public SpriteStore getChunkSprites(int chunk) {
+        SpriteStore store = chunks[chunk];
+        return (store != null)?store:EMPTY_STORE;
     }
 
-    public void addEnemyBullet(Sprite sprite){
-        buffer_list.add(sprite);
+
+    /**
+        Gets the SpriteStore of the pickups in the specified
+        chunk, which is empty if the chunk isn't loaded. Sprites
+        should not be added to or removed from the store
+        directly.
+    */
+    public SpriteStore getChunkPickups(int chunk) {
+        SpriteStore store = pickupChunks[chunk];
+        return (store != null)?store:EMPTY_STORE;
     }
 
-    public void transfer_buffer(){
-        for(int i = 0; i < buffer_list.size(); i++){
-            sprites.add(buffer_list.get(i));
+
+    /**
+        Moves a Sprite from the chunk it was indexed in to the
+        chunk that contains its current position. A Sprite that
+        moves into an unloaded chunk stays where it was indexed.
+    */
+    public void moveSprite(Sprite sprite) {
+        SpriteStore chunk = chunks[getChunk(sprite.getX())];
+        if (chunk != null && sprite.getStore() != chunk) {
+            chunk.add(sprite);
         }
-        buffer_list.clear();
     }
 
+
+    /**
+        Gets the number of Sprites in this map, excluding the
+        player Sprite.
+    */
+    public int getNumSprites() {
+        return sprites.size();
+    }
+
+
     /**
-        Removes a Sprite object from this map.
+        Gets the Sprite at the specified index, from 0 up to
+        getNumSprites(), excluding the player Sprite. Indexes
+        change when Sprites are removed.
     */
-    public void removeSprite(Sprite sprite) {
-        sprites.remove(sprite);
+    public Sprite getSprite(int index) {
+        return sprites.get(index);
     }
 
 
     /**
-        Gets an Iterator of all the Sprites in this map,
-        excluding the player Sprite.
+        Gets the Sprite with the specified handle, or null if it
+        has been removed from this map.
     */
-    public Iterator getSprites() {
-        return sprites.iterator();
+    public Sprite getSpriteByHandle(int handle) {
+        return sprites.getByHandle(handle);
     }
 
 }
@@ -1,9 +1,9 @@
 package com.brackeen.javagamebook.tilegame;
 
 import java.awt.*;
-import java.util.Iterator;
 
 import com.brackeen.javagamebook.graphics.Sprite;
+import com.brackeen.javagamebook.graphics.SpriteStore;
 import com.brackeen.javagamebook.tilegame.sprites.Creature;
 import com.brackeen.javagamebook.tilegame.sprites.Player;
 
@@ -67,6 +67,21 @@ public class TileMapRenderer {
     }
 
 
+    /**
+        Gets the horizontal scrolling offset of the map, which
+        keeps the player centered on a screen of the specified
+        width without scrolling past the edges of the map.
+    */
+    public static int getOffsetX(TileMap map, int screenWidth) {
+        int mapWidth = tilesToPixels(map.getWidth());
+        int offsetX = screenWidth / 2 -
+            Math.round(map.getPlayer().getX()) - TILE_SIZE;
+        offsetX = Math.min(offsetX, 0);
+        offsetX = Math.max(offsetX, screenWidth - mapWidth);
+        return offsetX;
+    }
+
+
     /**
         Sets the background to draw.
     */
@@ -76,9 +91,10 @@ public class TileMapRenderer {
 
 
     /**
-        Draws the specified TileMap.
+        Draws the specified TileMap, with the health and score of
+        the specified GameSession.
     */
-    public void draw(Graphics2D g, TileMap map,
+    public void draw(Graphics2D g, TileMap map, GameSession session,
         int screenWidth, int screenHeight)
     {
         //
@@ -94,10 +110,7 @@ public class TileMapRenderer {
 
         // get the scrolling position of the map
         // based on player's position
-        int offsetX = screenWidth / 2 -
-            Math.round(player.getX()) - TILE_SIZE;
-        offsetX = Math.min(offsetX, 0);
-        offsetX = Math.max(offsetX, screenWidth - mapWidth);
+        int offsetX = getOffsetX(map, screenWidth);
 
         // get the y offset to draw all sprites and tiles
         int offsetY = screenHeight -
@@ -121,13 +134,14 @@ public class TileMapRenderer {
             g.drawImage(background, x, y, null);
         }
 
-        // draw the visible tiles
-        int firstTileX = pixelsToTiles(-offsetX);
-        int lastTileX = firstTileX +
-            pixelsToTiles(screenWidth) + 1;
+        // draw the visible tiles, row by row
+        TilePalette palette = map.getPalette();
+        int firstTileX = Math.max(0, pixelsToTiles(-offsetX));
+        int lastTileX = Math.min(map.getWidth() - 1,
+            pixelsToTiles(-offsetX) + pixelsToTiles(screenWidth) + 1);
         for (int y=0; y<map.getHeight(); y++) {
             for (int x=firstTileX; x <= lastTileX; x++) {
-                Image image = map.getTile(x, y);
+                Image image = palette.getImage(map.getTileId(x, y));
                 if (image != null) {
                     g.drawImage(image,
                         tilesToPixels(x) + offsetX,
@@ -143,24 +157,37 @@ public class TileMapRenderer {
             Math.round(player.getY()) + offsetY,
             null);
 
-        // draw sprites
-        Iterator i = map.getSprites();
-        while (i.hasNext()) {
-            Sprite sprite = (Sprite)i.next();
-            int x = Math.round(sprite.getX()) + offsetX;
-            int y = Math.round(sprite.getY()) + offsetY;
-            g.drawImage(sprite.getImage(), x, y, null);
-
-            // wake up the creature when it's on screen
-            if (sprite instanceof Creature &&
-                x >= 0 && x < screenWidth)
-            {
-                ((Creature)sprite).wakeUp();
-                g.drawString("Health: " + MainGameState.HEALTH , screenWidth/8 , screenHeight/4);
-                g.drawString("Score: " + MainGameState.SCORE, screenWidth/3, screenHeight /4);
+        // draw sprites in the visible chunks (a sprite can hang
+        // over from the chunk to the left)
+        int firstChunk = Math.max(0, map.getChunk(-offsetX) - 1);
+        int lastChunk = map.getChunk(screenWidth - offsetX);
+        for (int c=firstChunk; c<=lastChunk; c++) {
+            SpriteStore pickups = map.getChunkPickups(c);
+            for (int j=0; j<pickups.size(); j++) {
+                Sprite sprite = pickups.getSprite(j);
+                g.drawImage(sprite.getImage(),
+                    Math.round(sprite.getX()) + offsetX,
+                    Math.round(sprite.getY()) + offsetY,
+                    null);
+            }
+
+            SpriteStore chunk = map.getChunkSprites(c);
+            for (int j=0; j<chunk.size(); j++) {
+                Sprite sprite = chunk.getSprite(j);
+                int x = Math.round(sprite.getX()) + offsetX;
+                int y = Math.round(sprite.getY()) + offsetY;
+                g.drawImage(sprite.getImage(), x, y, null);
+
+                if (x >= 0 && x < screenWidth) {
+                    g.drawString("Health: " + session.getHealth() , screenWidth/8 , screenHeight/4);
+                    g.drawString("Score: " + session.getScore(), screenWidth/3, screenHeight /4);
+                }
             }
         }
 
+        // draw all bullets with their shared image
+        map.getProjectiles().draw(g, offsetX, offsetY, screenWidth);
+
     }
 
 }
@@ -0,0 +1,90 @@
+package com.brackeen.javagamebook.tilegame;
+
+import java.awt.Image;
+
+/**
+    The TilePalette class maps the tile IDs stored in a TileMap
+    to tile Images and flags. ID 0 is always the empty tile: no
+    Image, no flags. A palette is built once, when the tile
+    images are loaded, and shared by every map that uses them.
+*/
+public class TilePalette {
+
+    /**
+        Flag for tiles that Sprites and bullets can't pass
+        through.
+    */
+    public static final int SOLID = 1;
+
+    /**
+        The ID of the empty tile.
+    */
+    public static final short EMPTY = 0;
+
+    private Image[] images;
+    private int[] flags;
+    private int size;
+
+    /**
+        Creates a new TilePalette holding only the empty tile.
+    */
+    public TilePalette() {
+        images = new Image[16];
+        flags = new int[16];
+        size = 1;
+    }
+
+
+    /**
+        Adds a tile with the specified Image and flags, and
+        returns its ID.
+    */
+    public short add(Image image, int flags) {
+        if (size > Short.MAX_VALUE) {
+            throw new IllegalStateException("Too many tiles");
+        }
+        if (size == images.length) {
+            Image[] newImages = new Image[size * 2];
+            int[] newFlags = new int[size * 2];
+            System.arraycopy(images, 0, newImages, 0, size);
+            System.arraycopy(this.flags, 0, newFlags, 0, size);
+            images = newImages;
+            this.flags = newFlags;
+        }
+        images[size] = image;
+        this.flags[size] = flags;
+        return (short)size++;
+    }
+
+
+    /**
+        Gets the number of tile IDs, including the empty tile.
+    */
+    public int size() {
+        return size;
+    }
+
+
+    /**
+        Gets the Image of a tile, or null for the empty tile.
+    */
+    public Image getImage(int id) {
+        return images[id];
+    }
+
+
+    /**
+        Gets the flags of a tile.
+    */
+    public int getFlags(int id) {
+        return flags[id];
+    }
+
+
+    /**
+        Checks if a tile is solid.
+    */
+    public boolean isSolid(int id) {
+        return (flags[id] & SOLID) != 0;
+    }
+}
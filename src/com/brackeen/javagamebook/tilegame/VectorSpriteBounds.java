@@ -0,0 +1,60 @@
+package com.brackeen.javagamebook.tilegame;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+    The VectorSpriteBounds class does the box test of SpriteBounds
+    with the Vector API, on as many boxes at once as the CPU's
+    widest int vectors hold. It needs the jdk.incubator.vector
+    module, so it's only used when SpriteBounds finds it loaded.
+*/
+final class VectorSpriteBounds {
+
+    private static final VectorSpecies<Integer> SPECIES =
+        IntVector.SPECIES_PREFERRED;
+
+    private VectorSpriteBounds() { }
+
+
+    /**
+        Gets the number of boxes tested at once.
+    */
+    static int getBlockSize() {
+        return SPECIES.length();
+    }
+
+
+    /**
+        Tests one box against whole blocks of the boxes from index
+        first up to index last, like SpriteBounds.testOverlaps().
+        Returns the index of the first box that wasn't tested,
+        which the caller tests with scalar code.
+    */
+    static int testOverlaps(int l, int t, int r, int b, int lay,
+        int msk, int[] left, int[] top, int[] right, int[] bottom,
+        int[] layer, int[] mask, int first, int last, int[] hits)
+    {
+        int step = SPECIES.length();
+        int end = first + SPECIES.loopBound(last - first);
+        int i = first;
+        for (; i<end; i+=step) {
+            IntVector test = IntVector.broadcast(SPECIES, l).sub(
+                IntVector.fromArray(SPECIES, right, i));
+            test = test.and(IntVector.fromArray(SPECIES, left, i).
+                sub(r));
+            test = test.and(IntVector.broadcast(SPECIES, t).sub(
+                IntVector.fromArray(SPECIES, bottom, i)));
+            test = test.and(IntVector.fromArray(SPECIES, top, i).
+                sub(b));
+            test = test.and(IntVector.fromArray(SPECIES, mask, i).
+                and(lay).neg());
+            test = test.and(IntVector.fromArray(SPECIES, layer, i).
+                and(msk).neg());
+            test.lanewise(VectorOperators.LSHR, 31).intoArray(hits,
+                i - first);
+        }
+        return i;
+    }
+}
@@ -1,6 +1,7 @@
 package com.brackeen.javagamebook.tilegame.sprites;
 
-import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+
 import com.brackeen.javagamebook.graphics.*;
 
 /**
@@ -19,15 +20,38 @@ public abstract class Creature extends Sprite {
     public static final int STATE_DYING = 1;
     public static final int STATE_DEAD = 2;
 
+    /**
+        Type tag bit set for all Creatures.
+    */
+    public static final int TYPE_CREATURE = 1;
+
+    /**
+        Type tag bit for Creatures that aren't affected by
+        gravity while they are alive.
+    */
+    public static final int TYPE_FLYING = 2;
+
+    /**
+        Type tag bit for enemy Creatures that shoot at the player.
+    */
+    public static final int TYPE_SHOOTING = 4;
+
+    /**
+        Value of LASTBUGSHOT for a Creature that hasn't been
+        updated by the game yet. The game sets it to the game time
+        the first time it sees the Creature.
+    */
+    public static final long NOT_SHOT = Long.MIN_VALUE;
+
     private Animation left;
     private Animation right;
     private Animation deadLeft;
     private Animation deadRight;
-    private int state;
     private long stateTime;
     public boolean isEnemyShooting = false;
 
-    public long LASTBUGSHOT = System.currentTimeMillis();
+    // the game time of the last shot (see GameSession.getTime())
+    public long LASTBUGSHOT = NOT_SHOT;
     public int BULLETCOUNT = 0;
 
     public String direction = "right"; // Initial player direction right
@@ -42,26 +66,44 @@ public abstract class Creature extends Sprite {
         this.right = right;
         this.deadLeft = deadLeft;
         this.deadRight = deadRight;
-        state = STATE_NORMAL;
+        setStoredState(STATE_NORMAL);
+        setType(TYPE_CREATURE);
     }
 
 
+    /**
+        Creates a new Creature of the same class as this one with
+        the specified Animations. Each subclass returns a new
+        instance of itself, so cloning doesn't need reflection.
+    */
+    protected abstract Creature newCreature(Animation left,
+        Animation right, Animation deadLeft, Animation deadRight);
+
+
     public Object clone() {
-        // use reflection to create the correct subclass
-        Constructor constructor = getClass().getConstructors()[0];
-        try {
-            return constructor.newInstance(new Object[] {
-                (Animation)left.clone(),
-                (Animation)right.clone(),
-                (Animation)deadLeft.clone(),
-                (Animation)deadRight.clone()
-            });
-        }
-        catch (Exception ex) {
-            // should never happen
-            ex.printStackTrace();
-            return null;
-        }
+        Creature creature = newCreature(
+            (Animation)left.clone(),
+            (Animation)right.clone(),
+            (Animation)deadLeft.clone(),
+            (Animation)deadRight.clone());
+        creature.setCollisionFilter(getCollisionLayer(),
+            getCollisionMask());
+        return creature;
+    }
+
+
+    /**
+        Resets this Creature so it can be used again: alive,
+        stopped and facing right.
+    */
+    public void reset() {
+        setStoredState(STATE_NORMAL);
+        stateTime = 0;
+        anim = right;
+        direction = "right";
+        LASTBUGSHOT = NOT_SHOT;
+        BULLETCOUNT = 0;
+        super.reset();
     }
 
 
@@ -89,7 +131,16 @@ public abstract class Creature extends Sprite {
         STATE_NORMAL, STATE_DYING, or STATE_DEAD.
     */
     public int getState() {
-        return state;
+        return getStoredState();
+    }
+
+
+    /**
+        Gets the amount of time, in milliseconds, this Creature
+        has been in its current state.
+    */
+    public long getStateTime() {
+        return stateTime;
     }
 
 
@@ -98,8 +149,8 @@ public abstract class Creature extends Sprite {
         STATE_DYING, or STATE_DEAD.
     */
     public void setState(int state) {
-        if (this.state != state) {
-            this.state = state;
+        if (getState() != state) {
+            setStoredState(state);
             stateTime = 0;
             if (state == STATE_DYING) {
                 setVelocityX(0);
@@ -113,7 +164,7 @@ public abstract class Creature extends Sprite {
         Checks if this creature is alive.
     */
     public boolean isAlive() {
-        return (state == STATE_NORMAL);
+        return (getState() == STATE_NORMAL);
     }
 
 
@@ -143,6 +194,57 @@ public abstract class Creature extends Sprite {
     }
 
 
+    public int getStateSize() {
+        return super.getStateSize() + 22;
+    }
+
+
+    /**
+        Writes the state of this Creature, including its timers
+        and the Animation it shows, for a snapshot of the game.
+    */
+    public void writeState(ByteBuffer buffer) {
+        super.writeState(buffer);
+        buffer.putLong(stateTime);
+        buffer.putLong(LASTBUGSHOT);
+        buffer.putInt(BULLETCOUNT);
+        int animIndex = 0;
+        if (anim == left) {
+            animIndex = 1;
+        }
+        else if (anim == deadRight) {
+            animIndex = 2;
+        }
+        else if (anim == deadLeft) {
+            animIndex = 3;
+        }
+        buffer.put((byte)animIndex);
+        buffer.put((byte)("right".equals(direction)?1:0));
+    }
+
+
+    public void readState(ByteBuffer buffer) {
+        super.readState(buffer);
+        stateTime = buffer.getLong();
+        LASTBUGSHOT = buffer.getLong();
+        BULLETCOUNT = buffer.getInt();
+        int animIndex = buffer.get();
+        if (animIndex == 1) {
+            anim = left;
+        }
+        else if (animIndex == 2) {
+            anim = deadRight;
+        }
+        else if (animIndex == 3) {
+            anim = deadLeft;
+        }
+        else {
+            anim = right;
+        }
+        direction = (buffer.get() == 1)?"right":"left";
+    }
+
+
     /**
         Updates the animaton for this creature.
     */
@@ -157,6 +259,7 @@ public abstract class Creature extends Sprite {
             newAnim = right;
             direction = "right";
         }
+        int state = getState();
         if (state == STATE_DYING && newAnim == left) {
             newAnim = deadLeft;
         }
@@ -1,14 +0,0 @@
-package com.brackeen.javagamebook.tilegame.sprites;
-
-import com.brackeen.javagamebook.graphics.Animation;
-
-/**
-    The Player.
-*/
-public class EnemyBullet extends Creature {
-
-    public EnemyBullet(Animation anim, Animation anim1, Animation anim2, Animation anim3)
-    {
-        super(anim, anim1, anim2, anim3);
-    }
-}
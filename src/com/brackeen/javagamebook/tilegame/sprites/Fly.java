@@ -11,6 +11,14 @@ public class Fly extends Creature {
         Animation deadLeft, Animation deadRight)
     {
         super(left, right, deadLeft, deadRight);
+        setType(TYPE_CREATURE | TYPE_FLYING);
+    }
+
+
+    protected Creature newCreature(Animation left, Animation right,
+        Animation deadLeft, Animation deadRight)
+    {
+        return new Fly(left, right, deadLeft, deadRight);
     }
 
 
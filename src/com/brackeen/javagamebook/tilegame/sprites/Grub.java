@@ -11,6 +11,14 @@ public class Grub extends Creature {
         Animation deadLeft, Animation deadRight)
     {
         super(left, right, deadLeft, deadRight);
+        setType(TYPE_CREATURE | TYPE_SHOOTING);
+    }
+
+
+    protected Creature newCreature(Animation left, Animation right,
+        Animation deadLeft, Animation deadRight)
+    {
+        return new Grub(left, right, deadLeft, deadRight);
     }
 
 
@@ -1,5 +1,7 @@
 package com.brackeen.javagamebook.tilegame.sprites;
 
+import java.nio.ByteBuffer;
+
 import com.brackeen.javagamebook.graphics.Animation;
 
 /**
@@ -18,6 +20,13 @@ public class Player extends Creature {
         super(left, right, deadLeft, deadRight);
     }
 
+
+    protected Creature newCreature(Animation left, Animation right,
+        Animation deadLeft, Animation deadRight)
+    {
+        return new Player(left, right, deadLeft, deadRight);
+    }
+
     public void collideHorizontal() {
         setVelocityX(0);
     }
@@ -39,6 +48,29 @@ public class Player extends Creature {
     }
 
 
+    public void reset() {
+        onGround = false;
+        super.reset();
+    }
+
+
+    public int getStateSize() {
+        return super.getStateSize() + 1;
+    }
+
+
+    public void writeState(ByteBuffer buffer) {
+        super.writeState(buffer);
+        buffer.put((byte)(onGround?1:0));
+    }
+
+
+    public void readState(ByteBuffer buffer) {
+        super.readState(buffer);
+        onGround = (buffer.get() == 1);
+    }
+
+
     public void wakeUp() {
         // do nothing
     }
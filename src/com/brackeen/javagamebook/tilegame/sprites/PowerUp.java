@@ -1,6 +1,7 @@
 package com.brackeen.javagamebook.tilegame.sprites;
 
-import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+
 import com.brackeen.javagamebook.graphics.*;
 
 /**
@@ -13,18 +14,19 @@ public abstract class PowerUp extends Sprite {
     }
 
 
+    /**
+        Creates a new PowerUp of the same class as this one with
+        the specified Animation. Each subclass returns a new
+        instance of itself, so cloning doesn't need reflection.
+    */
+    protected abstract PowerUp newPowerUp(Animation anim);
+
+
     public Object clone() {
-        // use reflection to create the correct subclass
-        Constructor constructor = getClass().getConstructors()[0];
-        try {
-            return constructor.newInstance(
-                new Object[] {(Animation)anim.clone()});
-        }
-        catch (Exception ex) {
-            // should never happen
-            ex.printStackTrace();
-            return null;
-        }
+        PowerUp powerUp = newPowerUp((Animation)anim.clone());
+        powerUp.setCollisionFilter(getCollisionLayer(),
+            getCollisionMask());
+        return powerUp;
     }
 
 
@@ -35,6 +37,10 @@ public abstract class PowerUp extends Sprite {
         public Star(Animation anim) {
             super(anim);
         }
+
+        protected PowerUp newPowerUp(Animation anim) {
+            return new Star(anim);
+        }
     }
 
 
@@ -45,6 +51,10 @@ public abstract class PowerUp extends Sprite {
         public Music(Animation anim) {
             super(anim);
         }
+
+        protected PowerUp newPowerUp(Animation anim) {
+            return new Music(anim);
+        }
     }
 
 
@@ -55,6 +65,10 @@ public abstract class PowerUp extends Sprite {
         public Goal(Animation anim) {
             super(anim);
         }
+
+        protected PowerUp newPowerUp(Animation anim) {
+            return new Goal(anim);
+        }
     }
 
     /**
@@ -63,6 +77,10 @@ public abstract class PowerUp extends Sprite {
         public Gas(Animation anim) {
             super(anim);
         }
+
+        protected PowerUp newPowerUp(Animation anim) {
+            return new Gas(anim);
+        }
     }
 
 
@@ -74,6 +92,29 @@ public abstract class PowerUp extends Sprite {
             super(anim);
         }
 
+        protected PowerUp newPowerUp(Animation anim) {
+            return new Explode(anim);
+        }
+
+        public void reset() {
+            EXPLOSIVE = true;
+            super.reset();
+        }
+
+        public int getStateSize() {
+            return super.getStateSize() + 1;
+        }
+
+        public void writeState(ByteBuffer buffer) {
+            super.writeState(buffer);
+            buffer.put((byte)(EXPLOSIVE?1:0));
+        }
+
+        public void readState(ByteBuffer buffer) {
+            super.readState(buffer);
+            EXPLOSIVE = (buffer.get() == 1);
+        }
+
     }
 
 }